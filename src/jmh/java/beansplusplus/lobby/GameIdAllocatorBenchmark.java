@@ -0,0 +1,37 @@
+package beansplusplus.lobby;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocating and freeing a game ID with N games running, in a 3 digit base 36 ID space
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GameIdAllocatorBenchmark {
+  @Param({"10", "100", "1000"})
+  public int games;
+
+  private GameIdAllocator allocator;
+
+  @Setup
+  public void setup() {
+    allocator = new GameIdAllocator(36, 3);
+    List<String> ids = new ArrayList<>();
+    for (int i = 0; i < games; i++) {
+      ids.add(String.format("%3s", Integer.toString(i, 36)).replace(' ', '0'));
+    }
+    allocator.reconcile(ids);
+  }
+
+  @Benchmark
+  public String allocateAndRelease() throws GameServerException {
+    String id = allocator.allocate();
+    allocator.release(id);
+    return id;
+  }
+}
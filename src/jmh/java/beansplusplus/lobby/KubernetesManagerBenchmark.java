@@ -0,0 +1,69 @@
+package beansplusplus.lobby;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reconcile and lookup paths of KubernetesManager against a fake apiserver holding N running games.
+ * The pool of ready worlds is kept full so tick measures a reconcile with nothing to change.
+ * Game IDs are in the ID space set by K8S_GAME_ID_RADIX and K8S_GAME_ID_LENGTH, like the manager's. The default
+ * space has 100 IDs. Set e.g. K8S_GAME_ID_RADIX=36 and K8S_GAME_ID_LENGTH=3 to benchmark more games
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class KubernetesManagerBenchmark {
+  private static final int RADIX = Env.getInt("K8S_GAME_ID_RADIX", 10);
+  private static final int LENGTH = Env.getInt("K8S_GAME_ID_LENGTH", 2);
+
+  @Param({"10", "50", "100"})
+  public int games;
+
+  private FakeApiServer apiServer;
+  private KubernetesManager manager;
+
+  @Setup
+  public void setup() throws Exception {
+    if (games > Math.pow(RADIX, LENGTH)) {
+      throw new IllegalStateException(games + " games don't fit in the game ID space. Set K8S_GAME_ID_RADIX and K8S_GAME_ID_LENGTH");
+    }
+    List<String> ids = new ArrayList<>();
+    for (int i = 0; i < games; i++) {
+      // zero padded, as GameIdAllocator makes them
+      ids.add(String.format("%" + LENGTH + "s", Integer.toString(i, RADIX)).replace(' ', '0'));
+    }
+
+    apiServer = new FakeApiServer();
+    apiServer.seedGames(ids);
+    apiServer.seedReadyClaims(10);
+
+    manager = new KubernetesManager(apiServer.client(), apiServer.watchClient());
+    long deadline = System.currentTimeMillis() + 30_000;
+    while (!manager.hasSynced()) {
+      if (System.currentTimeMillis() > deadline) {
+        throw new IllegalStateException("Cluster cache didn't sync");
+      }
+      Thread.sleep(50);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    manager.shutdown();
+    apiServer.stop();
+  }
+
+  @Benchmark
+  public Map<String, ?> getGames() throws GameServerException {
+    return manager.getGames();
+  }
+
+  @Benchmark
+  public void tick() throws GameServerException {
+    manager.tick();
+  }
+}
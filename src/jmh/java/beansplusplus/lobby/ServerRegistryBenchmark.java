@@ -0,0 +1,69 @@
+package beansplusplus.lobby;
+
+import net.md_5.bungee.api.config.ServerInfo;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One game pod moving to a new IP with N games registered. Each readiness change is one map update plus publishing
+ * a new directory
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ServerRegistryBenchmark {
+  @Param({"10", "100", "1000"})
+  public int games;
+
+  private final Map<String, ServerInfo> servers = new HashMap<>();
+  private final InetSocketAddress[] addresses = {
+      InetSocketAddress.createUnresolved("10.1.0.1", 25565),
+      InetSocketAddress.createUnresolved("10.1.0.2", 25565)
+  };
+  private final Instant start = Instant.now();
+  private ServerRegistry registry;
+  private int change = 0;
+
+  @Setup
+  public void setup() {
+    servers.put("lobby", serverInfo("lobby", InetSocketAddress.createUnresolved("lobby", 25565)));
+    registry = new ServerRegistry(servers, ServerRegistryBenchmark::serverInfo);
+    for (int i = 0; i < games; i++) {
+      InetSocketAddress address = InetSocketAddress.createUnresolved("10.0." + (i / 250) + "." + (i % 250 + 1), 25565);
+      registry.onGameChanged(new GameInfo(Integer.toString(i), GameType.BLOCK_SHUFFLE, "player", start, address));
+    }
+  }
+
+  /**
+   * ServerInfo is implemented by BungeeCord's proxy, which isn't on the classpath. Methods the registry doesn't
+   * need return null, false or 0
+   */
+  private static ServerInfo serverInfo(String id, InetSocketAddress address) {
+    return (ServerInfo) Proxy.newProxyInstance(ServerInfo.class.getClassLoader(), new Class<?>[]{ServerInfo.class}, (proxy, method, args) -> switch (method.getName()) {
+      case "getName" -> id;
+      case "getSocketAddress", "getAddress" -> address;
+      case "hashCode" -> id.hashCode();
+      case "equals" -> proxy == args[0];
+      case "toString" -> id;
+      default -> getDefault(method.getReturnType());
+    });
+  }
+
+  private static Object getDefault(Class<?> type) {
+    // the element of a new primitive array is that type's default, boxed
+    return type.isPrimitive() && type != void.class ? Array.get(Array.newInstance(type, 1), 0) : null;
+  }
+
+  @Benchmark
+  public ServerInfo addressChange() {
+    registry.onGameChanged(new GameInfo("0", GameType.BLOCK_SHUFFLE, "player", start, addresses[change++ & 1]));
+    return registry.get("0");
+  }
+}
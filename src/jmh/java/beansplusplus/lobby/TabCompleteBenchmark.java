@@ -0,0 +1,48 @@
+package beansplusplus.lobby;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tab completing /game join with N games running. Runs on every key press of every player typing the command
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TabCompleteBenchmark {
+  @Param({"10", "100", "1000"})
+  public int games;
+
+  @Param({"", "1"})
+  public String prefix;
+
+  private final Set<String> ids = new HashSet<>();
+  private GameDirectory directory = GameDirectory.EMPTY;
+
+  @Setup
+  public void setup() {
+    for (int i = 0; i < games; i++) {
+      String id = Integer.toString(i);
+      ids.add(id);
+      directory = directory.with(new GameDirectory.Entry(new GameInfo(id, GameType.BLOCK_SHUFFLE, "player", Instant.now(), null), null));
+    }
+  }
+
+  /**
+   * Copying the server map's keys and filtering them, as /game join completion did before the directory
+   */
+  @Benchmark
+  public List<String> copyAndFilter() {
+    return GameCommand.startingWith(new HashSet<>(ids), prefix);
+  }
+
+  @Benchmark
+  public List<String> directoryPrefix() {
+    return directory.withPrefix(prefix);
+  }
+}
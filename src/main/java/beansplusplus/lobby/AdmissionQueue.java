@@ -0,0 +1,162 @@
+package beansplusplus.lobby;
+
+import net.md_5.bungee.api.ChatColor;
+import net.md_5.bungee.api.ProxyServer;
+import net.md_5.bungee.api.chat.ComponentBuilder;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Holds game creations until the cluster has room for their pod, so no game pod is created only to sit Pending.
+ * Creators with fewer games running go first, then whoever has waited longest. Only the head of the queue is
+ * admitted, so a big game isn't starved by small ones behind it. Waiting players are told their position and a rough
+ * ETA, from how often games have been admitted lately. A player has at most one creation waiting, and loses it by
+ * leaving the proxy.
+ */
+public class AdmissionQueue {
+  private static final int MAX_SIZE = Env.getInt("ADMISSION_QUEUE_SIZE", 64);
+  private static final Duration UPDATE_INTERVAL = Duration.ofSeconds(30);
+  // weight of the latest admission in the average time between admissions
+  private static final double SMOOTHING = 0.3;
+
+  private static class Request {
+    final GameType type;
+    final String creator;
+    final long queuedAt = System.nanoTime();
+    final CompletableFuture<KubernetesManager.Admission> admitted = new CompletableFuture<>();
+    long updatedAt = queuedAt;
+
+    Request(GameType type, String creator) {
+      this.type = type;
+      this.creator = creator;
+    }
+  }
+
+  private final GameManager gameManager;
+  private final List<Request> waiting = new ArrayList<>();
+  private double secondsPerAdmission = 60;
+  private long lastAdmission = System.nanoTime();
+
+  public AdmissionQueue(GameManager gameManager) {
+    this.gameManager = gameManager;
+    Metrics.getInstance().gauge("beans_admission_queue_length", "Game creations waiting for room in the cluster", () -> size());
+  }
+
+  public synchronized int size() {
+    return waiting.size();
+  }
+
+  public synchronized boolean contains(String creator) {
+    return waiting.stream().anyMatch((request) -> request.creator.equals(creator));
+  }
+
+  /**
+   * Ask to create a game. Admitted at once if nobody is waiting and there's room
+   * @param type
+   * @param creator
+   * @param manager Null while still connecting to the cluster, in which case the creation waits
+   * @return Completes with the room for the game when it may be created, which the caller must pass to createGame or
+   * release. Fails with CancellationException if the creator leaves first. Null if the queue is full or the creator
+   * already has a creation waiting
+   */
+  public CompletableFuture<KubernetesManager.Admission> enqueue(GameType type, String creator, KubernetesManager manager) {
+    Request request = new Request(type, creator);
+    synchronized (this) {
+      if (waiting.size() >= MAX_SIZE || contains(creator)) {
+        return null;
+      }
+      if (waiting.isEmpty() && manager != null) {
+        KubernetesManager.Admission admission = manager.tryAdmit(type);
+        if (admission != null) {
+          return CompletableFuture.completedFuture(admission);
+        }
+      }
+      waiting.add(request);
+      sort();
+      tell(request, waiting.indexOf(request) + 1, "The cluster is full right now, so your game is queued. ");
+    }
+    return request.admitted;
+  }
+
+  /**
+   * Admit creations from the head of the queue while there's room, and update waiting players
+   * @param manager
+   */
+  public void tick(KubernetesManager manager) {
+    Map<Request, KubernetesManager.Admission> admitted = new LinkedHashMap<>();
+    List<Request> abandoned = new ArrayList<>();
+    synchronized (this) {
+      if (waiting.isEmpty()) {
+        return;
+      }
+      for (Request request : waiting) {
+        if (ProxyServer.getInstance().getPlayer(request.creator) == null) {
+          abandoned.add(request);
+        }
+      }
+      waiting.removeAll(abandoned);
+      sort();
+
+      KubernetesManager.Admission admission;
+      while (!waiting.isEmpty() && (admission = manager.tryAdmit(waiting.get(0).type)) != null) {
+        Request request = waiting.remove(0);
+        admitted.put(request, admission);
+        long now = System.nanoTime();
+        double sample = (now - Math.max(lastAdmission, request.queuedAt)) / 1e9;
+        secondsPerAdmission = SMOOTHING * sample + (1 - SMOOTHING) * secondsPerAdmission;
+        lastAdmission = now;
+      }
+
+      long now = System.nanoTime();
+      for (int i = 0; i < waiting.size(); i++) {
+        Request request = waiting.get(i);
+        if (now - request.updatedAt >= UPDATE_INTERVAL.toNanos()) {
+          tell(request, i + 1, "Still waiting for room in the cluster. ");
+        }
+      }
+    }
+
+    // completing starts the creation, which mustn't hold the queue's lock
+    for (Request request : abandoned) {
+      request.admitted.completeExceptionally(new CancellationException("Creator left"));
+    }
+    for (Map.Entry<Request, KubernetesManager.Admission> entry : admitted.entrySet()) {
+      Request request = entry.getKey();
+      Metrics.getInstance().histogram("beans_admission_wait_seconds", "Time game creations waited for room in the cluster", Metrics.LATENCY_BUCKETS)
+          .observeSince(request.queuedAt);
+      message(request.creator, "There's room for your game now. Creating it...", ChatColor.GREEN);
+      request.admitted.complete(entry.getValue());
+    }
+  }
+
+  /**
+   * Creators with the fewest games first, then the longest waiting
+   */
+  private void sort() {
+    Map<String, Integer> games = new HashMap<>();
+    GameDirectory directory = gameManager.getDirectory();
+    for (String id : directory.getIds()) {
+      games.merge(directory.get(id).game().creator(), 1, Integer::sum);
+    }
+    waiting.sort(Comparator.<Request>comparingInt((request) -> games.getOrDefault(request.creator, 0))
+        .thenComparingLong((request) -> request.queuedAt));
+  }
+
+  private void tell(Request request, int position, String prefix) {
+    request.updatedAt = System.nanoTime();
+    long eta = Math.round(position * secondsPerAdmission);
+    String estimate = eta < 60 ? eta + " second(s)" : Math.round(eta / 60.0) + " minute(s)";
+    message(request.creator, prefix + "You're number " + position + " in line. Estimated wait: " + estimate + ".", ChatColor.AQUA);
+  }
+
+  private static void message(String username, String text, ChatColor color) {
+    ProxiedPlayer player = ProxyServer.getInstance().getPlayer(username);
+    if (player != null) {
+      player.sendMessage(new ComponentBuilder(text).color(color).create());
+    }
+  }
+}
@@ -0,0 +1,240 @@
+package beansplusplus.lobby;
+
+import io.kubernetes.client.openapi.ApiException;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every Kubernetes API request made by the plugin goes through here, so they are all measured the same way.
+ * Requests are rate limited per verb, retried with jittered exponential backoff when the apiserver is busy or
+ * briefly unavailable, and short-circuited by a circuit breaker once it keeps failing. While the circuit is open,
+ * reads are still served from the watch-fed ClusterCache and only writes fail, straight away.
+ */
+public class ApiGateway {
+  private static final ApiGateway API_GATEWAY = new ApiGateway();
+  private static final double QPS = Env.getDouble("K8S_API_QPS", 20);
+  private static final double BURST = Env.getDouble("K8S_API_BURST", 40);
+  private static final int MAX_ATTEMPTS = Env.getInt("K8S_API_MAX_ATTEMPTS", 4);
+  private static final long BACKOFF_BASE_MILLIS = 100;
+  private static final long BACKOFF_MAX_MILLIS = 5000;
+  // consecutive failed requests, after retries, that open the circuit
+  private static final int BREAKER_FAILURES = Env.getInt("K8S_API_BREAKER_FAILURES", 5);
+  private static final long BREAKER_OPEN_NANOS = TimeUnit.SECONDS.toNanos(Env.getLong("K8S_API_BREAKER_OPEN_SECONDS", 30));
+
+  public static ApiGateway getInstance() {
+    return API_GATEWAY;
+  }
+
+  public interface ApiCall<T> {
+    T call() throws ApiException;
+  }
+
+  /**
+   * Thrown instead of making a request while the circuit is open
+   */
+  public static class CircuitOpenException extends ApiException {
+    public CircuitOpenException() {
+      super("Kubernetes API circuit is open after repeated failures. Not sending the request");
+    }
+  }
+
+  private static class TokenBucket {
+    private double tokens = BURST;
+    private long refilledAt = System.nanoTime();
+
+    /**
+     * Take a token
+     * @return Nanoseconds to wait before the token may be used
+     */
+    synchronized long take() {
+      long now = System.nanoTime();
+      tokens = Math.min(BURST, tokens + (now - refilledAt) / 1e9 * QPS);
+      refilledAt = now;
+      tokens--;
+      // the token is borrowed from the future if the bucket was empty
+      return tokens >= 0 ? 0 : (long) (-tokens / QPS * 1e9);
+    }
+  }
+
+  private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+  // circuit breaker. Guarded by this
+  private int consecutiveFailures = 0;
+  private long openedAt = -1; // -1 while closed
+  private boolean trialInFlight = false;
+  private double openNanosTotal = 0;
+
+  private ApiGateway() {
+    Metrics metrics = Metrics.getInstance();
+    metrics.gauge("beans_k8s_api_circuit_open", "1 while the Kubernetes API circuit breaker is open", () -> isOpen() ? 1 : 0);
+    metrics.gauge("beans_k8s_api_circuit_open_seconds_total", "Time the Kubernetes API circuit breaker has spent open", () -> getOpenSeconds());
+  }
+
+  /**
+   * Make an API request
+   * @param verb E.g. create, patch, delete
+   * @param resource E.g. pods, jobs, persistentvolumeclaims
+   * @param call
+   * @return The call's result
+   * @throws ApiException The last failure once retries run out, or CircuitOpenException
+   */
+  public <T> T call(String verb, String resource, ApiCall<T> call) throws ApiException {
+    Metrics metrics = Metrics.getInstance();
+    for (int attempt = 1; ; attempt++) {
+      if (!allowRequest()) {
+        metrics.counter("beans_k8s_api_short_circuited_total", "Kubernetes API requests not sent because the circuit was open",
+            "verb", verb, "resource", resource).inc();
+        throw new CircuitOpenException();
+      }
+      throttle(verb);
+
+      long start = System.nanoTime();
+      try {
+        T result = call.call();
+        onResponse(true);
+        return result;
+      } catch (ApiException e) {
+        metrics.counter("beans_k8s_api_errors_total", "Kubernetes API requests that failed",
+            "verb", verb, "resource", resource, "code", Integer.toString(e.getCode())).inc();
+
+        boolean retriable = isRetriable(verb, e.getCode());
+        if (!retriable || attempt >= MAX_ATTEMPTS) {
+          // the apiserver answered a client error, so it's healthy
+          onResponse(!isServerFailure(e.getCode()));
+          throw e;
+        }
+        // retries of one request don't count as separate failures
+        releaseTrial();
+
+        metrics.counter("beans_k8s_api_retries_total", "Kubernetes API requests retried",
+            "verb", verb, "resource", resource, "code", Integer.toString(e.getCode())).inc();
+        sleep(TimeUnit.MILLISECONDS.toNanos(getBackoffMillis(attempt, e)));
+      } finally {
+        metrics.histogram("beans_k8s_api_request_seconds", "Kubernetes API request latency", Metrics.LATENCY_BUCKETS,
+            "verb", verb, "resource", resource).observeSince(start);
+      }
+    }
+  }
+
+  /**
+   * 409 is a conflicting write, 429 is the apiserver's own rate limit, and 5xx or no response at all (code 0) is the
+   * apiserver struggling. A create that got no response, or a 5xx other than 503, may have been applied, so it isn't
+   * retried. Objects are created with generated names, so a repeat would make a second object. A create's 409 means
+   * the name is taken, which a retry can't change.
+   * @param verb
+   * @param code
+   * @return
+   */
+  private static boolean isRetriable(String verb, int code) {
+    if (code == 409) {
+      return !verb.equals("create");
+    }
+    if (code == 429 || code == 503) {
+      return true;
+    }
+    return (code == 0 || code >= 500) && !verb.equals("create");
+  }
+
+  private static boolean isServerFailure(int code) {
+    return code == 0 || code == 429 || code >= 500;
+  }
+
+  /**
+   * Full jitter: a random time up to an exponentially growing cap. Uses Retry-After if the apiserver sent one
+   * @param attempt
+   * @param e
+   * @return
+   */
+  private static long getBackoffMillis(int attempt, ApiException e) {
+    Map<String, List<String>> headers = e.getResponseHeaders();
+    if (headers != null) {
+      for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+        if ("Retry-After".equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+          try {
+            return Math.min(BACKOFF_MAX_MILLIS, TimeUnit.SECONDS.toMillis(Long.parseLong(header.getValue().get(0).trim())));
+          } catch (NumberFormatException ignored) {
+            // an HTTP date. Fall back to backoff
+          }
+        }
+      }
+    }
+    long cap = Math.min(BACKOFF_MAX_MILLIS, BACKOFF_BASE_MILLIS << Math.min(attempt - 1, 16));
+    return ThreadLocalRandom.current().nextLong(cap + 1);
+  }
+
+  private void throttle(String verb) throws ApiException {
+    long wait = buckets.computeIfAbsent(verb, (k) -> new TokenBucket()).take();
+    if (wait <= 0) {
+      return;
+    }
+    Metrics metrics = Metrics.getInstance();
+    metrics.counter("beans_k8s_api_throttled_total", "Kubernetes API requests delayed by the client-side rate limit", "verb", verb).inc();
+    metrics.histogram("beans_k8s_api_throttle_seconds", "Time Kubernetes API requests waited for the client-side rate limit",
+        Metrics.LATENCY_BUCKETS, "verb", verb).observe(wait / 1e9);
+    sleep(wait);
+  }
+
+  private static void sleep(long nanos) throws ApiException {
+    try {
+      TimeUnit.NANOSECONDS.sleep(nanos);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ApiException(e);
+    }
+  }
+
+  /**
+   * Closed: every request goes through. Open: none do until the open time passes. Then one trial request is let
+   * through (half open), and its result closes or reopens the circuit
+   * @return
+   */
+  private synchronized boolean allowRequest() {
+    if (openedAt < 0) {
+      return true;
+    }
+    if (System.nanoTime() - openedAt < BREAKER_OPEN_NANOS || trialInFlight) {
+      return false;
+    }
+    trialInFlight = true;
+    return true;
+  }
+
+  private synchronized void releaseTrial() {
+    trialInFlight = false;
+  }
+
+  private synchronized void onResponse(boolean healthy) {
+    trialInFlight = false;
+    if (healthy) {
+      consecutiveFailures = 0;
+      if (openedAt >= 0) {
+        openNanosTotal += System.nanoTime() - openedAt;
+        openedAt = -1;
+      }
+      return;
+    }
+
+    consecutiveFailures++;
+    if (openedAt >= 0) {
+      // the trial failed. Stay open for another period, counting the time so far
+      long now = System.nanoTime();
+      openNanosTotal += now - openedAt;
+      openedAt = now;
+    } else if (consecutiveFailures >= BREAKER_FAILURES) {
+      openedAt = System.nanoTime();
+    }
+  }
+
+  public synchronized boolean isOpen() {
+    return openedAt >= 0;
+  }
+
+  private synchronized double getOpenSeconds() {
+    double nanos = openNanosTotal + (openedAt >= 0 ? System.nanoTime() - openedAt : 0);
+    return nanos / 1e9;
+  }
+}
@@ -0,0 +1,248 @@
+package beansplusplus.lobby;
+
+import com.sun.net.httpserver.HttpExchange;
+import net.md_5.bungee.api.ProxyServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Content addressed cache of the plugin JARs that game and pre-gen pods download.
+ * Each JAR is fetched from blob storage once, stored by its SHA-256 and served to pods by the HTTP endpoint at
+ * /artifacts/[sha256]/[file name]. Pods check the hash after downloading. When the JAR in blob storage changes its
+ * hash changes, so it gets a new URL and pods never see a stale copy. A superseded JAR is kept for
+ * ARTIFACT_GRACE_MINUTES, so pods created with its URL just before the change can still download it.
+ */
+public class ArtifactCache {
+  private static final ArtifactCache ARTIFACT_CACHE = new ArtifactCache();
+  private static final long REFRESH_MINUTES = 10;
+  private static final Pattern SHA_256 = Pattern.compile("[0-9a-f]{64}");
+
+  public static ArtifactCache getInstance() {
+    return ARTIFACT_CACHE;
+  }
+
+  private record Artifact(String sha256, String fileName, String etag) {
+  }
+
+  private final String baseUrl;
+  private final Duration grace;
+  private final Map<String, Artifact> artifacts = new ConcurrentHashMap<>();
+  // hashes no upstream URL serves anymore, and when that was first noticed
+  private final Map<String, Long> superseded = new HashMap<>();
+  private final HttpClient httpClient = HttpClient.newBuilder().followRedirects(HttpClient.Redirect.NORMAL).build();
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+  // null until started. Nothing is cached without it
+  private volatile Path directory;
+
+  private ArtifactCache() {
+    this(Env.getString("ARTIFACT_BASE_URL", null), Duration.ofMinutes(Env.getLong("ARTIFACT_GRACE_MINUTES", 1440)));
+  }
+
+  /**
+   * @param baseUrl Where pods reach the HTTP endpoint. E.g. http://beans:8080. Caching is off if this is null
+   * @param grace How long a superseded JAR is kept
+   */
+  ArtifactCache(String baseUrl, Duration grace) {
+    this.baseUrl = baseUrl;
+    this.grace = grace;
+  }
+
+  /**
+   * Start fetching artifacts and serving them
+   * @param directory Where to store JARs
+   * @param urls Artifacts to fetch straight away. Others are fetched the first time they are asked for
+   * @throws IOException If the directory can't be made, or the HTTP endpoint isn't running. Pods download plugins
+   * from blob storage then
+   */
+  public void start(Path directory, Collection<String> urls) throws IOException {
+    if (baseUrl == null) {
+      ProxyServer.getInstance().getLogger().info("ARTIFACT_BASE_URL isn't set. Pods will download plugins from blob storage");
+      return;
+    }
+
+    // the directory is only set once JARs can be served from it
+    HttpEndpoint.getInstance().register("/artifacts/", this::serve);
+    open(directory);
+
+    for (String url : urls) {
+      artifacts.putIfAbsent(url, new Artifact(null, null, null));
+    }
+    executor.scheduleWithFixedDelay(this::refreshAll, 0, REFRESH_MINUTES, TimeUnit.MINUTES);
+  }
+
+  /**
+   * Use a directory for JARs, without fetching or serving anything yet
+   * @param directory
+   */
+  void open(Path directory) throws IOException {
+    Files.createDirectories(directory);
+    this.directory = directory;
+  }
+
+  public void stop() {
+    executor.shutdown();
+  }
+
+  /**
+   * Get the init container command that puts these JARs in a directory
+   * @param urls Upstream URLs of the JARs
+   * @param destination Directory in the pod
+   * @return A command that downloads from this cache and checks the hashes. Downloads from upstream if any JAR isn't
+   * cached yet
+   */
+  public List<String> getDownloadCommand(List<String> urls, String destination) {
+    List<Artifact> cached = new ArrayList<>();
+    for (String url : urls) {
+      boolean caching = baseUrl != null && directory != null;
+      Artifact artifact = caching ? artifacts.get(url) : null;
+      if (artifact == null || artifact.sha256() == null) {
+        if (caching && artifact == null) {
+          artifacts.put(url, new Artifact(null, null, null));
+          executor.execute(() -> refresh(url));
+        }
+        cached = null;
+        break;
+      }
+      cached.add(artifact);
+    }
+
+    if (cached == null) {
+      List<String> command = new ArrayList<>();
+      command.add("wget");
+      command.addAll(urls);
+      command.add("-P");
+      command.add(destination);
+      return command;
+    }
+
+    String script = cached.stream()
+        .map((a) -> "wget -O " + destination + "/" + a.fileName() + " " + baseUrl + "/artifacts/" + a.sha256() + "/" + a.fileName()
+            + " && echo '" + a.sha256() + "  " + destination + "/" + a.fileName() + "' | sha256sum -c -")
+        .collect(Collectors.joining(" && "));
+    return List.of("sh", "-c", script);
+  }
+
+  private void refreshAll() {
+    for (String url : artifacts.keySet()) {
+      refresh(url);
+    }
+    removeUnused(System.nanoTime());
+  }
+
+  /**
+   * Fetch an artifact if it has changed upstream
+   * @param url
+   */
+  void refresh(String url) {
+    Artifact current = artifacts.get(url);
+    try {
+      HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url)).GET();
+      if (current != null && current.etag() != null) {
+        request.header("If-None-Match", current.etag());
+      }
+
+      Path download = Files.createTempFile(directory, "download", ".tmp");
+      try {
+        HttpResponse<Path> response = httpClient.send(request.build(), HttpResponse.BodyHandlers.ofFile(download));
+        if (response.statusCode() == 304) {
+          return;
+        }
+        if (response.statusCode() != 200) {
+          throw new IOException("Got status " + response.statusCode() + " from " + url);
+        }
+
+        String sha256 = hash(download);
+        Path file = directory.resolve(sha256 + ".jar");
+        if (!Files.exists(file)) {
+          Files.move(download, file, StandardCopyOption.ATOMIC_MOVE);
+        }
+        String fileName = url.substring(url.lastIndexOf('/') + 1);
+        artifacts.put(url, new Artifact(sha256, fileName, response.headers().firstValue("ETag").orElse(null)));
+      } finally {
+        Files.deleteIfExists(download);
+      }
+    } catch (IOException e) {
+      ProxyServer.getInstance().getLogger().warning("Failed to cache " + url + ": " + e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Delete JARs whose content no upstream URL has served for the grace period. A pod may have been created with the
+   * old URL just before the upstream JAR changed, and only download it once it starts
+   * @param now System.nanoTime
+   */
+  synchronized void removeUnused(long now) {
+    Set<String> used = artifacts.values().stream().map(Artifact::sha256).filter(Objects::nonNull).collect(Collectors.toSet());
+    superseded.keySet().removeAll(used);
+    try (var files = Files.list(directory)) {
+      for (Path file : files.collect(Collectors.toList())) {
+        String name = file.getFileName().toString();
+        if (!name.endsWith(".jar")) {
+          continue;
+        }
+        String sha256 = name.substring(0, name.length() - ".jar".length());
+        if (used.contains(sha256)) {
+          continue;
+        }
+        // JARs left from before a restart count from when they're first seen
+        long supersededAt = superseded.computeIfAbsent(sha256, (hash) -> now);
+        if (now - supersededAt >= grace.toNanos()) {
+          Files.deleteIfExists(file);
+          superseded.remove(sha256);
+        }
+      }
+    } catch (IOException e) {
+      ProxyServer.getInstance().getLogger().warning("Failed to clean artifact cache: " + e.getMessage());
+    }
+  }
+
+  private static String hash(Path file) throws IOException {
+    try (DigestInputStream in = new DigestInputStream(Files.newInputStream(file), MessageDigest.getInstance("SHA-256"))) {
+      in.transferTo(OutputStream.nullOutputStream());
+      return String.format("%064x", new BigInteger(1, in.getMessageDigest().digest()));
+    } catch (NoSuchAlgorithmException e) {
+      throw new Error(e);
+    }
+  }
+
+  void serve(HttpExchange exchange) throws IOException {
+    // path is /artifacts/[sha256]/[file name]
+    String[] parts = exchange.getRequestURI().getPath().split("/");
+    Path file = directory != null && parts.length == 4 && SHA_256.matcher(parts[2]).matches() ? directory.resolve(parts[2] + ".jar") : null;
+
+    if (file == null || !Files.exists(file)) {
+      exchange.sendResponseHeaders(404, -1);
+      exchange.close();
+      return;
+    }
+
+    exchange.getResponseHeaders().set("Content-Type", "application/java-archive");
+    exchange.sendResponseHeaders(200, Files.size(file));
+    try (InputStream in = Files.newInputStream(file); OutputStream out = exchange.getResponseBody()) {
+      in.transferTo(out);
+    }
+  }
+}
@@ -0,0 +1,230 @@
+package beansplusplus.lobby;
+
+import io.kubernetes.client.common.KubernetesObject;
+import io.kubernetes.client.informer.ResourceEventHandler;
+import io.kubernetes.client.informer.SharedIndexInformer;
+import io.kubernetes.client.informer.SharedInformerFactory;
+import io.kubernetes.client.openapi.ApiClient;
+import io.kubernetes.client.openapi.apis.BatchV1Api;
+import io.kubernetes.client.openapi.apis.CoreV1Api;
+import io.kubernetes.client.openapi.models.*;
+import io.kubernetes.client.util.CallGeneratorParams;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Local copy of the jobs, pods and PVCs in the game namespace, kept up to date by watches.
+ * Each informer lists once, then follows the watch. If the watch disconnects or its resource version expires the
+ * informer lists again, so the cache converges after any disconnect without anything else polling the apiserver.
+ */
+public class ClusterCache {
+  private static final String[] INDEXED_LABELS = {"purpose", "game-id", "stage", "job-name"};
+
+  private final String namespace;
+  private final SharedInformerFactory factory;
+  private final SharedIndexInformer<V1Job> jobInformer;
+  private final SharedIndexInformer<V1Pod> podInformer;
+  private final SharedIndexInformer<V1PersistentVolumeClaim> claimInformer;
+
+  /**
+   * @param namespace
+   * @param client Client with no read timeout, as watches are long-lived requests
+   */
+  public ClusterCache(String namespace, ApiClient client) {
+    this.namespace = namespace;
+    CoreV1Api coreV1Api = new CoreV1Api(client);
+    BatchV1Api batchV1Api = new BatchV1Api(client);
+
+    factory = new SharedInformerFactory(client);
+
+    // only objects this plugin created have a purpose label
+    jobInformer = factory.sharedIndexInformerFor(
+        (CallGeneratorParams params) -> batchV1Api.listNamespacedJobCall(namespace, null, null, null, null, "purpose", null, params.resourceVersion, null, params.timeoutSeconds, params.watch, null),
+        V1Job.class, V1JobList.class, 0);
+    podInformer = factory.sharedIndexInformerFor(
+        (CallGeneratorParams params) -> coreV1Api.listNamespacedPodCall(namespace, null, null, null, null, "purpose", null, params.resourceVersion, null, params.timeoutSeconds, params.watch, null),
+        V1Pod.class, V1PodList.class, 0);
+    claimInformer = factory.sharedIndexInformerFor(
+        (CallGeneratorParams params) -> coreV1Api.listNamespacedPersistentVolumeClaimCall(namespace, null, null, null, null, "purpose", null, params.resourceVersion, null, params.timeoutSeconds, params.watch, null),
+        V1PersistentVolumeClaim.class, V1PersistentVolumeClaimList.class, 0);
+
+    jobInformer.addIndexers(labelIndexers());
+    podInformer.addIndexers(labelIndexers());
+    claimInformer.addIndexers(labelIndexers());
+  }
+
+  private static <T extends KubernetesObject> Map<String, Function<T, List<String>>> labelIndexers() {
+    Map<String, Function<T, List<String>>> indexers = new HashMap<>();
+    for (String label : INDEXED_LABELS) {
+      indexers.put(label, (T object) -> {
+        String value = getLabel(object, label);
+        return value == null ? List.of() : List.of(value);
+      });
+    }
+    return indexers;
+  }
+
+  static String getLabel(KubernetesObject object, String label) {
+    Map<String, String> labels = object.getMetadata().getLabels();
+    return labels == null ? null : labels.get(label);
+  }
+
+  private static <T extends KubernetesObject> List<T> byLabel(SharedIndexInformer<T> informer, String label, String value) {
+    return informer.getIndexer().byIndex(label, value);
+  }
+
+  public void start() {
+    factory.startAllRegisteredInformers();
+  }
+
+  public void stop() {
+    factory.stopAllRegisteredInformers();
+  }
+
+  /**
+   * Subscribe to pod changes. Handlers run on the informer thread, so they should not block
+   * @param handler
+   */
+  public void addPodHandler(ResourceEventHandler<V1Pod> handler) {
+    podInformer.addEventHandler(handler);
+  }
+
+  /**
+   * @return true once every informer has completed its initial list
+   */
+  public boolean hasSynced() {
+    return jobInformer.hasSynced() && podInformer.hasSynced() && claimInformer.hasSynced();
+  }
+
+  /**
+   * Get jobs by purpose label. E.g. beans-game or beans-pre-gen
+   * @param purpose
+   * @return
+   */
+  public List<V1Job> getJobs(String purpose) {
+    return byLabel(jobInformer, "purpose", purpose);
+  }
+
+  /**
+   * Get the game jobs for a game id
+   * @param gameId
+   * @return
+   */
+  public List<V1Job> getGameJobs(String gameId) {
+    return byLabel(jobInformer, "game-id", gameId).stream()
+        .filter((job) -> "beans-game".equals(getLabel(job, "purpose")))
+        .collect(Collectors.toList());
+  }
+
+  public List<V1Pod> getPods(String purpose) {
+    return byLabel(podInformer, "purpose", purpose);
+  }
+
+  /**
+   * Get the game pods for a game id
+   * @param gameId
+   * @return
+   */
+  public List<V1Pod> getGamePods(String gameId) {
+    return byLabel(podInformer, "game-id", gameId).stream()
+        .filter((pod) -> "beans-game".equals(getLabel(pod, "purpose")))
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * @param name
+   * @return Null if there's no job with the name
+   */
+  public V1Job getJob(String name) {
+    return jobInformer.getIndexer().getByKey(namespace + "/" + name);
+  }
+
+  /**
+   * @param name
+   * @return Null if there's no pod with the name
+   */
+  public V1Pod getPod(String name) {
+    return podInformer.getIndexer().getByKey(namespace + "/" + name);
+  }
+
+  public List<V1Pod> getJobPods(String jobName) {
+    return byLabel(podInformer, "job-name", jobName);
+  }
+
+  /**
+   * Check whether a pod that hasn't finished mounts a PVC. Terminating pods count, as they still hold the volume
+   * @param claimName
+   * @return
+   */
+  public boolean isClaimMounted(String claimName) {
+    for (V1Pod pod : podInformer.getIndexer().list()) {
+      String phase = pod.getStatus() == null ? null : pod.getStatus().getPhase();
+      if ("Succeeded".equals(phase) || "Failed".equals(phase) || pod.getSpec() == null || pod.getSpec().getVolumes() == null) {
+        continue;
+      }
+      for (V1Volume volume : pod.getSpec().getVolumes()) {
+        if (volume.getPersistentVolumeClaim() != null && claimName.equals(volume.getPersistentVolumeClaim().getClaimName())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Get world PVCs by stage. See the PVC life cycle in KubernetesManager
+   * @param stage
+   * @return
+   */
+  public List<V1PersistentVolumeClaim> getClaims(String stage) {
+    return byLabel(claimInformer, "stage", stage).stream()
+        .filter((claim) -> "beans-world".equals(getLabel(claim, "purpose")))
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * @return Number of world PVCs in every stage
+   */
+  public int getClaimCount() {
+    return byLabel(claimInformer, "purpose", "beans-world").size();
+  }
+
+  /**
+   * Copy the current state of the cache
+   * @return
+   */
+  public ClusterSnapshot snapshot() {
+    return new ClusterSnapshot(jobInformer.getIndexer().list(), podInformer.getIndexer().list(), claimInformer.getIndexer().list());
+  }
+
+  /*
+   * Write-through of API responses. The watch would deliver the same objects a moment later, but a tick or a
+   * second /game create running before then must not act on the old state.
+   */
+
+  public void update(V1Job job) {
+    jobInformer.getIndexer().update(job);
+  }
+
+  public void update(V1PersistentVolumeClaim claim) {
+    claimInformer.getIndexer().update(claim);
+  }
+
+  public void update(V1Pod pod) {
+    podInformer.getIndexer().update(pod);
+  }
+
+  public void remove(V1Job job) {
+    jobInformer.getIndexer().delete(job);
+  }
+
+  public void remove(V1Pod pod) {
+    podInformer.getIndexer().delete(pod);
+  }
+
+  public void remove(V1PersistentVolumeClaim claim) {
+    claimInformer.getIndexer().delete(claim);
+  }
+}
@@ -0,0 +1,386 @@
+package beansplusplus.lobby;
+
+import io.kubernetes.client.custom.NodeMetrics;
+import io.kubernetes.client.custom.NodeMetricsList;
+import io.kubernetes.client.custom.Quantity;
+import io.kubernetes.client.informer.SharedIndexInformer;
+import io.kubernetes.client.informer.SharedInformerFactory;
+import io.kubernetes.client.openapi.ApiClient;
+import io.kubernetes.client.openapi.ApiException;
+import io.kubernetes.client.openapi.apis.CoreV1Api;
+import io.kubernetes.client.openapi.models.*;
+import io.kubernetes.client.util.CallGeneratorParams;
+import net.md_5.bungee.api.ProxyServer;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Works out whether a pod of some size can be scheduled, from a watch of the nodes and the pods of the game namespace.
+ * Pods of other namespaces aren't seen, so only K8S_CAPACITY_FRACTION of each node's allocatable CPU and memory is
+ * counted as available to games. Fits are reserved until the pod they were for shows in the cache, or the creation
+ * they were for gives up.
+ * Until the node watch has synced, e.g. without permission to list nodes, everything fits.
+ * The load of each node is its live usage from the metrics API (metrics-server) where there is one, otherwise the
+ * share of it requested by game namespace pods.
+ */
+public class ClusterCapacity {
+  private static final double FRACTION = Env.getDouble("K8S_CAPACITY_FRACTION", 1.0);
+  private static final long LOAD_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+  private static final String HOSTNAME_LABEL = "kubernetes.io/hostname";
+
+  /**
+   * CPU in cores and memory in bytes
+   */
+  public record Resources(double cpu, double memory) {
+    public static final Resources ZERO = new Resources(0, 0);
+
+    public static Resources of(Map<String, Quantity> requests) {
+      Quantity cpu = requests == null ? null : requests.get("cpu");
+      Quantity memory = requests == null ? null : requests.get("memory");
+      return new Resources(cpu == null ? 0 : cpu.getNumber().doubleValue(), memory == null ? 0 : memory.getNumber().doubleValue());
+    }
+
+    public Resources plus(Resources other) {
+      return new Resources(cpu + other.cpu, memory + other.memory);
+    }
+
+    public Resources minus(Resources other) {
+      return new Resources(cpu - other.cpu, memory - other.memory);
+    }
+
+    public boolean covers(Resources other) {
+      return cpu >= other.cpu && memory >= other.memory;
+    }
+  }
+
+  /**
+   * Room held for a pod that's about to be created
+   */
+  public static final class Reservation {
+    private final Resources resources;
+    // node the pod is steered to. Null if it could go anywhere
+    private String node;
+    // job that creates the pod. Null until the job exists
+    private String jobName;
+
+    private Reservation(Resources resources) {
+      this.resources = resources;
+    }
+  }
+
+  private final SharedInformerFactory factory;
+  private final SharedIndexInformer<V1Node> nodeInformer;
+  private final ClusterCache cache;
+  private final io.kubernetes.client.Metrics metricsApi;
+  private final ApiGateway api = ApiGateway.getInstance();
+  private final List<Reservation> reservations = new ArrayList<>();
+  // live usage as a share of allocatable, by node name. Empty without the metrics API
+  private Map<String, Double> liveLoad = Map.of();
+  private long lastLoadSample = System.nanoTime() - LOAD_INTERVAL_NANOS;
+  private boolean metricsAvailable = true;
+
+  /**
+   * @param client Client for API requests
+   * @param watchClient Client with no read timeout, as watches are long-lived requests
+   * @param cache Cache of the game namespace
+   */
+  public ClusterCapacity(ApiClient client, ApiClient watchClient, ClusterCache cache) {
+    this.cache = cache;
+    metricsApi = new io.kubernetes.client.Metrics(client);
+    CoreV1Api coreV1Api = new CoreV1Api(watchClient);
+    factory = new SharedInformerFactory(watchClient);
+    nodeInformer = factory.sharedIndexInformerFor(
+        (CallGeneratorParams params) -> coreV1Api.listNodeCall(null, null, null, null, null, null, params.resourceVersion, null, params.timeoutSeconds, params.watch, null),
+        V1Node.class, V1NodeList.class, 0);
+
+    Metrics metrics = Metrics.getInstance();
+    metrics.gauge("beans_capacity_free_cpu_cores", "CPU free for game and pre-gen pods", () -> getTotalFree().cpu());
+    metrics.gauge("beans_capacity_free_memory_bytes", "Memory free for game and pre-gen pods", () -> getTotalFree().memory());
+  }
+
+  public void start() {
+    factory.startAllRegisteredInformers();
+  }
+
+  public void stop() {
+    factory.stopAllRegisteredInformers();
+  }
+
+  /**
+   * Sample the live load of every node if one is due. Called from the reconcile tick
+   */
+  public void tick() {
+    synchronized (this) {
+      if (!metricsAvailable || System.nanoTime() - lastLoadSample < LOAD_INTERVAL_NANOS) {
+        return;
+      }
+      lastLoadSample = System.nanoTime();
+    }
+
+    NodeMetricsList nodeMetrics;
+    try {
+      nodeMetrics = api.call("list", "nodemetrics", () -> metricsApi.getNodeMetrics());
+    } catch (ApiException e) {
+      if (e.getCode() == 404 || e.getCode() == 403) {
+        ProxyServer.getInstance().getLogger().warning("Can't read node metrics. Nodes are ranked by requested resources instead");
+        synchronized (this) {
+          metricsAvailable = false;
+        }
+      } else {
+        ProxyServer.getInstance().getLogger().warning("Failed to read node metrics: " + e.getMessage());
+      }
+      return;
+    }
+
+    Map<String, Double> load = new HashMap<>();
+    for (NodeMetrics node : nodeMetrics.getItems()) {
+      V1Node v1Node = nodeInformer.getIndexer().getByKey(node.getMetadata().getName());
+      if (v1Node == null || v1Node.getStatus() == null) {
+        continue;
+      }
+      load.put(node.getMetadata().getName(), share(Resources.of(node.getUsage()), Resources.of(v1Node.getStatus().getAllocatable())));
+    }
+    synchronized (this) {
+      liveLoad = load;
+    }
+  }
+
+  /**
+   * @param requests
+   * @return true if a pod with these requests could be scheduled now
+   */
+  public synchronized boolean fits(Resources requests) {
+    if (!nodeInformer.hasSynced()) {
+      return true;
+    }
+    Map<String, Resources> nodes = getNodeFree();
+    boolean fitsANode = nodes.values().stream().anyMatch((free) -> free.covers(requests));
+    return fitsANode && getTotalFree(nodes).covers(requests);
+  }
+
+  /**
+   * Reserve room for a pod about to be created, if it fits. The reservation must be handed to the pod's job with
+   * bind, or released
+   * @param requests
+   * @return Null if it doesn't fit
+   */
+  public synchronized Reservation tryReserve(Resources requests) {
+    if (!fits(requests)) {
+      return null;
+    }
+    Reservation reservation = new Reservation(requests);
+    reservations.add(reservation);
+    return reservation;
+  }
+
+  /**
+   * Hold a reservation until the job's pod shows in the cache, or the job is gone
+   * @param reservation
+   * @param jobName
+   */
+  public synchronized void bind(Reservation reservation, String jobName) {
+    reservation.jobName = jobName;
+  }
+
+  /**
+   * Reserve room on a node already chosen for a pod, whether or not it fits. The reservation must be handed to the
+   * pod's job with bind, or released
+   * @param requests
+   * @param node
+   * @return
+   */
+  public synchronized Reservation reserveOn(Resources requests, String node) {
+    Reservation reservation = new Reservation(requests);
+    reservation.node = node;
+    reservations.add(reservation);
+    return reservation;
+  }
+
+  /**
+   * Give up a reservation whose pod won't be created
+   * @param reservation
+   */
+  public synchronized void release(Reservation reservation) {
+    reservations.remove(reservation);
+  }
+
+  /**
+   * @param node
+   * @param requests
+   * @return true if a pod with these requests could be scheduled on the node now
+   */
+  public synchronized boolean fitsOn(String node, Resources requests) {
+    if (!nodeInformer.hasSynced()) {
+      return true;
+    }
+    Resources free = getNodeFree().get(node);
+    return free != null && free.covers(requests);
+  }
+
+  /**
+   * Steer a reservation to the node its pod will run on, so the next choice of node sees it
+   * @param reservation
+   * @param node
+   */
+  public synchronized void pin(Reservation reservation, String node) {
+    reservation.node = node;
+  }
+
+  /**
+   * @param node
+   * @return Share of the node in use, 0 to 1 or over. Live usage if the metrics API has it, otherwise requests.
+   * 0 before the node watch has synced, and 1 for nodes that can't take pods
+   */
+  public synchronized double getLoad(String node) {
+    if (!nodeInformer.hasSynced()) {
+      return 0;
+    }
+    V1Node v1Node = nodeInformer.getIndexer().getByKey(node);
+    if (v1Node == null || !isSchedulable(v1Node)) {
+      return 1;
+    }
+    Double live = liveLoad.get(node);
+    if (live != null) {
+      return live;
+    }
+    Resources allocatable = Resources.of(v1Node.getStatus().getAllocatable());
+    Resources counted = new Resources(allocatable.cpu() * FRACTION, allocatable.memory() * FRACTION);
+    return share(counted.minus(getNodeFree().get(node)), allocatable);
+  }
+
+  /**
+   * @param requests
+   * @return Ready, schedulable nodes with room for the requests. Empty before the node watch has synced
+   */
+  public synchronized List<String> getNodesWithRoom(Resources requests) {
+    if (!nodeInformer.hasSynced()) {
+      return List.of();
+    }
+    List<String> nodes = new ArrayList<>();
+    getNodeFree().forEach((node, free) -> {
+      if (free.covers(requests)) {
+        nodes.add(node);
+      }
+    });
+    return nodes;
+  }
+
+  /**
+   * @param node
+   * @return Value of the node's hostname label, for node affinity. The node name if it has none
+   */
+  public String getHostname(String node) {
+    V1Node v1Node = nodeInformer.getIndexer().getByKey(node);
+    Map<String, String> labels = v1Node == null ? null : v1Node.getMetadata().getLabels();
+    return labels != null && labels.containsKey(HOSTNAME_LABEL) ? labels.get(HOSTNAME_LABEL) : node;
+  }
+
+  private static double share(Resources used, Resources total) {
+    double cpu = total.cpu() > 0 ? used.cpu() / total.cpu() : 0;
+    double memory = total.memory() > 0 ? used.memory() / total.memory() : 0;
+    return Math.max(cpu, memory);
+  }
+
+  /**
+   * Drop reservations whose pod is in the cache, and so counted already, or whose job was deleted before it had one
+   */
+  private void removeCreatedReservations() {
+    reservations.removeIf((reservation) -> reservation.jobName != null
+        && (!cache.getJobPods(reservation.jobName).isEmpty() || cache.getJob(reservation.jobName) == null));
+  }
+
+  private synchronized Resources getTotalFree() {
+    return nodeInformer.hasSynced() ? getTotalFree(getNodeFree()) : Resources.ZERO;
+  }
+
+  /**
+   * @param nodes Free resources of each node
+   * @return Free resources of every node, less pods waiting for a node and reservations not pinned to a node
+   */
+  private Resources getTotalFree(Map<String, Resources> nodes) {
+    Resources free = Resources.ZERO;
+    for (Resources node : nodes.values()) {
+      free = free.plus(node);
+    }
+    for (V1Pod pod : getActivePods()) {
+      if (pod.getSpec().getNodeName() == null) {
+        free = free.minus(getRequests(pod.getSpec()));
+      }
+    }
+    for (Reservation reservation : reservations) {
+      if (reservation.node == null) {
+        free = free.minus(reservation.resources);
+      }
+    }
+    return free;
+  }
+
+  /**
+   * @return Allocatable resources of each ready, schedulable node, less the requests of game namespace pods and
+   * reservations on it
+   */
+  private Map<String, Resources> getNodeFree() {
+    removeCreatedReservations();
+    Map<String, Resources> nodes = new HashMap<>();
+    for (V1Node node : nodeInformer.getIndexer().list()) {
+      if (isSchedulable(node)) {
+        Resources allocatable = Resources.of(node.getStatus().getAllocatable());
+        nodes.put(node.getMetadata().getName(), new Resources(allocatable.cpu() * FRACTION, allocatable.memory() * FRACTION));
+      }
+    }
+    for (V1Pod pod : getActivePods()) {
+      String nodeName = pod.getSpec().getNodeName();
+      if (nodeName != null && nodes.containsKey(nodeName)) {
+        nodes.put(nodeName, nodes.get(nodeName).minus(getRequests(pod.getSpec())));
+      }
+    }
+    for (Reservation reservation : reservations) {
+      if (reservation.node != null && nodes.containsKey(reservation.node)) {
+        nodes.put(reservation.node, nodes.get(reservation.node).minus(reservation.resources));
+      }
+    }
+    return nodes;
+  }
+
+  private static boolean isSchedulable(V1Node node) {
+    if (node.getSpec() != null && Boolean.TRUE.equals(node.getSpec().getUnschedulable())) {
+      return false;
+    }
+    if (node.getStatus() == null || node.getStatus().getConditions() == null) {
+      return false;
+    }
+    return node.getStatus().getConditions().stream()
+        .anyMatch((condition) -> condition.getType().equals("Ready") && condition.getStatus().equals("True"));
+  }
+
+  /**
+   * @return Pods of the game namespace that hold resources
+   */
+  private List<V1Pod> getActivePods() {
+    List<V1Pod> pods = new ArrayList<>();
+    for (String purpose : List.of("beans-game", "beans-pre-gen", "beans-template", "beans-wipe")) {
+      for (V1Pod pod : cache.getPods(purpose)) {
+        String phase = pod.getStatus() == null ? null : pod.getStatus().getPhase();
+        if (!"Succeeded".equals(phase) && !"Failed".equals(phase)) {
+          pods.add(pod);
+        }
+      }
+    }
+    return pods;
+  }
+
+  /**
+   * @param spec
+   * @return Requests of the containers of a pod. Init containers run first and are assumed to need less
+   */
+  public static Resources getRequests(V1PodSpec spec) {
+    Resources requests = Resources.ZERO;
+    for (V1Container container : spec.getContainers()) {
+      if (container.getResources() != null) {
+        requests = requests.plus(Resources.of(container.getResources().getRequests()));
+      }
+    }
+    return requests;
+  }
+}
@@ -0,0 +1,62 @@
+package beansplusplus.lobby;
+
+import io.kubernetes.client.common.KubernetesObject;
+import io.kubernetes.client.openapi.models.V1Job;
+import io.kubernetes.client.openapi.models.V1PersistentVolumeClaim;
+import io.kubernetes.client.openapi.models.V1Pod;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The jobs, pods and PVCs in the game namespace at one point in time.
+ * A reconcile pass takes one snapshot and makes every decision from it, so the decisions agree with each other.
+ * Objects being deleted are left out. Nothing more is done with them, and a foreground delete can keep them for a while.
+ */
+public class ClusterSnapshot {
+  private final List<V1Job> jobs;
+  private final List<V1Pod> pods;
+  private final List<V1PersistentVolumeClaim> claims;
+
+  public ClusterSnapshot(List<V1Job> jobs, List<V1Pod> pods, List<V1PersistentVolumeClaim> claims) {
+    this.jobs = withoutDeleted(jobs);
+    this.pods = withoutDeleted(pods);
+    this.claims = withoutDeleted(claims);
+  }
+
+  private static <T extends KubernetesObject> List<T> withoutDeleted(List<T> objects) {
+    return objects.stream().filter((o) -> o.getMetadata().getDeletionTimestamp() == null).collect(Collectors.toUnmodifiableList());
+  }
+
+  private static <T extends KubernetesObject> List<T> withLabel(List<T> objects, String label, String value) {
+    return objects.stream().filter((o) -> value.equals(ClusterCache.getLabel(o, label))).collect(Collectors.toList());
+  }
+
+  public List<V1Job> getJobs(String purpose) {
+    return withLabel(jobs, "purpose", purpose);
+  }
+
+  public List<V1Pod> getPods(String purpose) {
+    return withLabel(pods, "purpose", purpose);
+  }
+
+  public List<V1Pod> getJobPods(String jobName) {
+    return withLabel(pods, "job-name", jobName);
+  }
+
+  /**
+   * @return World PVCs in every stage
+   */
+  public List<V1PersistentVolumeClaim> getClaims() {
+    return withLabel(claims, "purpose", "beans-world");
+  }
+
+  /**
+   * Get world PVCs by stage
+   * @param stage
+   * @return
+   */
+  public List<V1PersistentVolumeClaim> getClaims(String stage) {
+    return withLabel(withLabel(claims, "purpose", "beans-world"), "stage", stage);
+  }
+}
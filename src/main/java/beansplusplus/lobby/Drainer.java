@@ -0,0 +1,108 @@
+package beansplusplus.lobby;
+
+import net.md_5.bungee.api.ChatColor;
+import net.md_5.bungee.api.ProxyServer;
+import net.md_5.bungee.api.chat.ComponentBuilder;
+import net.md_5.bungee.api.config.ServerInfo;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Empties a game before it's deleted. While a game drains it takes no new players, and its players are moved back to
+ * the lobby a batch at a time, so the lobby isn't hit by every player at once. The game is deleted once its server
+ * answers a ping with nobody online, which counts players of every proxy, or when DRAIN_TIMEOUT_SECONDS passes,
+ * taking anyone left with it.
+ */
+public class Drainer {
+  private static final int BATCH_SIZE = Env.getInt("DRAIN_BATCH_SIZE", 5);
+  private static final Duration BATCH_INTERVAL = Duration.ofMillis(Env.getLong("DRAIN_BATCH_INTERVAL_MILLIS", 1000));
+  private static final Duration TIMEOUT = Duration.ofSeconds(Env.getLong("DRAIN_TIMEOUT_SECONDS", 60));
+
+  private static class Drain {
+    final long startedAt = System.nanoTime();
+    // players sent to the lobby. They stay on the game until the switch completes
+    final Set<UUID> moved = new HashSet<>();
+    // when the last player was sent to the lobby. Pings from before then may still count them
+    long lastMoveAt = startedAt;
+    ScheduledFuture<?> task;
+  }
+
+  private final GameManager gameManager;
+  private final Map<String, Drain> draining = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+    Thread thread = new Thread(runnable, "beans-drain");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  public Drainer(GameManager gameManager) {
+    this.gameManager = gameManager;
+    Metrics.getInstance().gauge("beans_draining_games", "Games moving their players to the lobby before being deleted", () -> draining.size());
+  }
+
+  public void stop() {
+    scheduler.shutdownNow();
+  }
+
+  public boolean isDraining(String id) {
+    return draining.containsKey(id);
+  }
+
+  /**
+   * Start draining a game, then delete it
+   * @param id
+   * @return false if the game is already draining
+   */
+  public boolean drain(String id) {
+    synchronized (draining) {
+      if (draining.containsKey(id)) {
+        return false;
+      }
+      Drain drain = new Drain();
+      draining.put(id, drain);
+      drain.task = scheduler.scheduleWithFixedDelay(() -> step(id, drain), 0, BATCH_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+      return true;
+    }
+  }
+
+  private void step(String id, Drain drain) {
+    GameDirectory.Entry entry = gameManager.getDirectory().get(id);
+    List<ProxiedPlayer> players = entry == null || entry.server() == null ? List.of() : List.copyOf(entry.server().getPlayers());
+
+    // a game still starting has nobody on it
+    if (entry == null || entry.server() == null || (players.isEmpty() && isEmpty(id, drain)) || System.nanoTime() - drain.startedAt > TIMEOUT.toNanos()) {
+      synchronized (draining) {
+        draining.remove(id);
+        drain.task.cancel(false);
+      }
+      Metrics.getInstance().histogram("beans_drain_seconds", "Time games took to drain", Metrics.LATENCY_BUCKETS).observeSince(drain.startedAt);
+      gameManager.deleteGame(id);
+      return;
+    }
+
+    ServerInfo lobby = ProxyServer.getInstance().getServerInfo("lobby");
+    int batch = 0;
+    for (ProxiedPlayer player : players) {
+      if (batch >= BATCH_SIZE) {
+        break;
+      }
+      if (drain.moved.add(player.getUniqueId())) {
+        batch++;
+        drain.lastMoveAt = System.nanoTime();
+        player.sendMessage(new ComponentBuilder("This game is closing. Moving you to the lobby...").color(ChatColor.AQUA).create());
+        player.connect(lobby);
+      }
+    }
+  }
+
+  /**
+   * @return true if the game's server has said it has nobody online since the last player was moved
+   */
+  private boolean isEmpty(String id, Drain drain) {
+    ServerStatusService.ServerStatus status = gameManager.getStatus(id);
+    return status != null && status.online() == 0 && status.time() > drain.lastMoveAt;
+  }
+}
@@ -0,0 +1,63 @@
+package beansplusplus.lobby;
+
+import java.util.function.Function;
+
+/**
+ * Reads settings from environment variables. A variable that's set but can't be parsed fails with a message naming
+ * it, rather than a bare NumberFormatException from a static initializer. Unset string variables are logged with the
+ * default used instead.
+ */
+public final class Env {
+  private Env() {
+  }
+
+  /**
+   * @param key
+   * @param default_ Used if the variable isn't set. May be null
+   * @return
+   */
+  public static String getString(String key, String default_) {
+    String value = System.getenv(key);
+    if (value == null) {
+      // printed, as this runs before the proxy's logger exists in tests and benchmarks
+      System.out.println("Can't find env called: " + key + ". Using default: " + default_);
+      return default_;
+    }
+    return value;
+  }
+
+  public static int getInt(String key, int default_) {
+    return get(key, default_, Integer::parseInt, "an integer");
+  }
+
+  public static long getLong(String key, long default_) {
+    return get(key, default_, Long::parseLong, "an integer");
+  }
+
+  public static double getDouble(String key, double default_) {
+    return get(key, default_, Double::parseDouble, "a number");
+  }
+
+  public static boolean getBoolean(String key, boolean default_) {
+    return get(key, default_, Env::parseBoolean, "true or false");
+  }
+
+  private static boolean parseBoolean(String value) {
+    if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+      throw new IllegalArgumentException();
+    }
+    return Boolean.parseBoolean(value);
+  }
+
+  private static <T> T get(String key, T default_, Function<String, T> parser, String expected) {
+    String value = System.getenv(key);
+    if (value == null) {
+      return default_;
+    }
+    try {
+      return parser.apply(value.trim());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Env variable " + key + " must be " + expected + ". Got: \"" + value + "\"", e);
+    }
+  }
+}
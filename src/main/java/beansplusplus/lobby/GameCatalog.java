@@ -0,0 +1,82 @@
+package beansplusplus.lobby;
+
+import net.md_5.bungee.api.ProxyServer;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Plugin JAR and resource profile of each game type. Defaults come from game-catalog.yaml in the plugin. A file at
+ * GAME_CATALOG_FILE, e.g. mounted from a config map, overrides them by type. Types missing from both use the default profile.
+ * Profiles can also be changed at runtime by RightSizer.
+ */
+public class GameCatalog {
+  private static final String CATALOG_FILE = Env.getString("GAME_CATALOG_FILE", "");
+  // what game-job.yaml gave every game before there were profiles
+  private static final ResourceProfile BUILT_IN_PROFILE = new ResourceProfile("3Gi", "4Gi", "1500m", "3500m", "2500M", 10);
+  private static final GameCatalog GAME_CATALOG = new GameCatalog();
+
+  public static GameCatalog getInstance() {
+    return GAME_CATALOG;
+  }
+
+  private final Map<GameType, String> jarUrls = new EnumMap<>(GameType.class);
+  private final Map<GameType, ResourceProfile> profiles = new EnumMap<>(GameType.class);
+
+  private GameCatalog() {
+    Map<String, Object> catalog = new HashMap<>(load(GameCatalog.class.getResourceAsStream("/game-catalog.yaml")));
+
+    Path file = Path.of(CATALOG_FILE);
+    if (!CATALOG_FILE.isEmpty() && Files.exists(file)) {
+      try (InputStream in = Files.newInputStream(file)) {
+        catalog.putAll(load(in));
+      } catch (IOException e) {
+        throw new Error("Failed to read the game catalog at " + file, e);
+      }
+    }
+
+    ResourceProfile defaultProfile = ResourceProfile.fromMap(getSection(catalog, "default"), BUILT_IN_PROFILE);
+    for (GameType type : GameType.values()) {
+      Map<String, Object> section = getSection(catalog, type.string());
+      profiles.put(type, ResourceProfile.fromMap(section, defaultProfile));
+      if (section.containsKey("jarUrl")) {
+        jarUrls.put(type, String.valueOf(section.get("jarUrl")));
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> load(InputStream in) {
+    Object loaded = new Yaml().load(in);
+    return loaded == null ? Map.of() : (Map<String, Object>) loaded;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> getSection(Map<String, Object> catalog, String key) {
+    Object section = catalog.get(key);
+    return section == null ? Map.of() : (Map<String, Object>) section;
+  }
+
+  /**
+   * @param type
+   * @return Null if the catalog doesn't override the type's JAR
+   */
+  String getJarUrl(GameType type) {
+    return jarUrls.get(type);
+  }
+
+  public synchronized ResourceProfile getProfile(GameType type) {
+    return profiles.get(type);
+  }
+
+  public synchronized void setProfile(GameType type, ResourceProfile profile) {
+    ProxyServer.getInstance().getLogger().info("Resource profile of " + type.string() + " is now " + profile);
+    profiles.put(type, profile);
+  }
+}
@@ -2,15 +2,17 @@ package beansplusplus.lobby;
 
 import net.md_5.bungee.api.ChatColor;
 import net.md_5.bungee.api.CommandSender;
-import net.md_5.bungee.api.ProxyServer;
 import net.md_5.bungee.api.chat.ComponentBuilder;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
 import net.md_5.bungee.api.plugin.Command;
 import net.md_5.bungee.api.plugin.TabExecutor;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.Set;
 
 public class GameCommand extends Command implements TabExecutor {
   private final GameManager gameManager = GameManager.getInstance();
@@ -36,6 +38,8 @@ public class GameCommand extends Command implements TabExecutor {
       create(p, args);
     } else if (args[0].equalsIgnoreCase("delete")) {
       delete(p, args);
+    } else if (args[0].equalsIgnoreCase("queue")) {
+      queue(p, args);
     } else {
       printCommands(p);
     }
@@ -45,6 +49,7 @@ public class GameCommand extends Command implements TabExecutor {
     p.sendMessage(new ComponentBuilder("/game list").color(ChatColor.RED).create());
     p.sendMessage(new ComponentBuilder("/game join <game id>").color(ChatColor.RED).create());
     p.sendMessage(new ComponentBuilder("/game create <game type>").color(ChatColor.RED).create());
+    p.sendMessage(new ComponentBuilder("/game queue <game type|leave>").color(ChatColor.RED).create());
     p.sendMessage(new ComponentBuilder("/game delete <game type>").color(ChatColor.RED).create());
   }
 
@@ -55,13 +60,45 @@ public class GameCommand extends Command implements TabExecutor {
   }
 
   private void printServers(ProxiedPlayer p) {
-    if (gameManager.getAvailableGameIds().size() == 0) {
+    GameDirectory directory = gameManager.getDirectory();
+
+    if (directory.size() == 0) {
       p.sendMessage(new ComponentBuilder("No servers currently...").color(ChatColor.RED).create());
     }
 
-    for (String serverId : gameManager.getAvailableGameIds()) {
-
-      p.sendMessage(new ComponentBuilder(serverId).color(ChatColor.AQUA).create());
+    for (String serverId : directory.getIds()) {
+      GameDirectory.Entry entry = directory.get(serverId);
+      GameInfo game = entry.game();
+      long minutes = Duration.between(game.startTime(), Instant.now()).toMinutes();
+
+      StringBuilder line = new StringBuilder(serverId)
+          .append(" - ").append(game.type() == null ? "unknown" : game.type().string());
+      if (!game.creator().isEmpty()) {
+        line.append(" by ").append(game.creator());
+      }
+      ChatColor color = ChatColor.AQUA;
+      ServerStatusService.ServerStatus status = gameManager.getStatus(serverId);
+      if (entry.state() == GameDirectory.State.STARTING) {
+        line.append(" - starting");
+        color = ChatColor.GRAY;
+      } else if (gameManager.isDraining(serverId)) {
+        line.append(" - closing");
+        color = ChatColor.GRAY;
+      } else if (status == null) {
+        line.append(" - ").append(entry.players()).append(" player(s)");
+      } else {
+        line.append(" - ").append(status.online()).append("/").append(status.max()).append(" players");
+        if (!status.motd().isBlank()) {
+          line.append(" - ").append(status.motd().strip());
+        }
+        line.append(" - ").append(status.latencyMillis()).append("ms");
+        if (status.isFull()) {
+          color = ChatColor.RED;
+        }
+      }
+      line.append(" - ").append(minutes).append(" min");
+
+      p.sendMessage(new ComponentBuilder(line.toString()).color(color).create());
     }
   }
 
@@ -81,9 +118,66 @@ public class GameCommand extends Command implements TabExecutor {
       return;
     }
 
-    gameManager.createServerAsync(type, p);
+    if (gameManager.isAwaitingAdmission(p.getName())) {
+      p.sendMessage(new ComponentBuilder("Your last game is still waiting for room. Please wait...").color(ChatColor.RED).create());
+
+      return;
+    }
+
+    int ahead = gameManager.getPendingOperations();
+
+    if (!gameManager.createServerAsync(type, p)) {
+      p.sendMessage(new ComponentBuilder("Too many games are being created right now. Please try again soon.").color(ChatColor.RED).create());
+
+      return;
+    }
+
+    if (gameManager.isAwaitingAdmission(p.getName())) {
+      // the admission queue has told them their position
+      return;
+    }
+
+    if (ahead > 0) {
+      p.sendMessage(new ComponentBuilder("Your game is queued behind " + ahead + " other request(s). Please wait...").color(ChatColor.AQUA).create());
+    } else {
+      p.sendMessage(new ComponentBuilder("Creating server... Please wait...").color(ChatColor.AQUA).create());
+    }
+  }
+
+  private void queue(ProxiedPlayer p, String[] args) {
+    if (args.length < 2) {
+      p.sendMessage(new ComponentBuilder("Queue takes one argument. For example:").color(ChatColor.RED).create());
+      for (GameType gameType : GameType.values()) {
+        p.sendMessage(new ComponentBuilder("/game queue " + gameType.string()).color(ChatColor.RED).create());
+      }
+
+      return;
+    }
+
+    if (args[1].equalsIgnoreCase("leave")) {
+      if (gameManager.leaveQueue(p)) {
+        p.sendMessage(new ComponentBuilder("Left the queue.").color(ChatColor.AQUA).create());
+      } else {
+        p.sendMessage(new ComponentBuilder("You aren't in a queue.").color(ChatColor.RED).create());
+      }
+
+      return;
+    }
+
+    GameType type = GameType.byString(args[1]);
+
+    if (type == null) {
+      p.sendMessage(new ComponentBuilder("Game type is needed. For example:").color(ChatColor.RED).create());
+      printTypes(p);
+
+      return;
+    }
+
+    int position = gameManager.queue(p, type);
 
-    p.sendMessage(new ComponentBuilder("Creating server... Please wait...").color(ChatColor.AQUA).create());
+    if (position > 0) {
+      p.sendMessage(new ComponentBuilder("Queued for " + type.string() + ". You are number " + position + " in the queue.").color(ChatColor.AQUA).create());
+    }
   }
 
   private void join(ProxiedPlayer p, String[] args) {
@@ -94,16 +188,28 @@ public class GameCommand extends Command implements TabExecutor {
     }
     String id = args[1];
 
-    Set<String> games = gameManager.getAvailableGameIds();
+    GameDirectory.Entry entry = gameManager.getDirectory().get(id);
 
-    if (!games.contains(id)) {
+    if (entry == null) {
       p.sendMessage(new ComponentBuilder("No server with that ID.").color(ChatColor.RED).create());
       p.sendMessage(new ComponentBuilder("See all games with /game list").color(ChatColor.RED).create());
 
       return;
     }
 
-    p.connect(ProxyServer.getInstance().getServerInfo(id));
+    if (entry.state() == GameDirectory.State.STARTING) {
+      p.sendMessage(new ComponentBuilder("This game is still starting. Please try again soon.").color(ChatColor.RED).create());
+
+      return;
+    }
+
+    if (gameManager.isDraining(id)) {
+      p.sendMessage(new ComponentBuilder("This game is closing.").color(ChatColor.RED).create());
+
+      return;
+    }
+
+    p.connect(entry.server());
   }
 
   private void delete(ProxiedPlayer p, String[] args) {
@@ -114,40 +220,50 @@ public class GameCommand extends Command implements TabExecutor {
     }
     String id = args[1];
 
-    Set<String> games = gameManager.getAvailableGameIds();
+    GameDirectory.Entry entry = gameManager.getDirectory().get(id);
 
-    if (!games.contains(id)) {
+    if (entry == null) {
       p.sendMessage(new ComponentBuilder("No server with that ID.").color(ChatColor.RED).create());
       p.sendMessage(new ComponentBuilder("See all games with /game list").color(ChatColor.RED).create());
 
       return;
     }
 
-    if (ProxyServer.getInstance().getServers().get(id).getPlayers().size() != 0) {
-      p.sendMessage(new ComponentBuilder("This game cant be deleted. There are still players on here").color(ChatColor.RED).create());
+    if (!gameManager.drainGame(id)) {
+      p.sendMessage(new ComponentBuilder("This game is already closing.").color(ChatColor.RED).create());
 
       return;
     }
 
-    gameManager.deleteGame(id);
+    if (entry.players() != 0) {
+      p.sendMessage(new ComponentBuilder("Moving " + entry.players() + " player(s) to the lobby, then deleting the game...").color(ChatColor.AQUA).create());
+    }
   }
 
   @Override
   public Iterable<String> onTabComplete(CommandSender sender, String[] args) {
     if (args.length == 1) {
-      return List.of("list", "join", "create", "delete").stream().filter((s) -> s.startsWith(args[0].toLowerCase())).toList();
+      return startingWith(List.of("list", "join", "create", "delete", "queue"), args[0]);
     }
 
     if (args.length != 2) return Collections.emptyList();
 
     if (args[0].equalsIgnoreCase("create")) {
-      return GameType.allGameStrings().stream().filter((s) -> s.startsWith(args[1].toLowerCase())).toList();
+      return startingWith(GameType.allGameStrings(), args[1]);
+    } else if(args[0].equalsIgnoreCase("queue")) {
+      List<String> options = new ArrayList<>(GameType.allGameStrings());
+      options.add("leave");
+      return startingWith(options, args[1]);
     } else if(args[0].equalsIgnoreCase("join")) {
-      return gameManager.getAvailableGameIds().stream().filter((s) -> s.startsWith(args[1].toLowerCase())).toList();
+      return gameManager.getDirectory().withPrefix(args[1]);
     } else if(args[0].equalsIgnoreCase("delete")) {
-      return gameManager.getAvailableGameIds().stream().filter((s) -> s.startsWith(args[1].toLowerCase())).toList();
+      return gameManager.getDirectory().withPrefix(args[1]);
     }
 
     return Collections.emptyList();
   }
+
+  static List<String> startingWith(Collection<String> options, String prefix) {
+    return options.stream().filter((s) -> s.startsWith(prefix.toLowerCase())).toList();
+  }
 }
\ No newline at end of file
@@ -0,0 +1,122 @@
+package beansplusplus.lobby;
+
+import net.md_5.bungee.api.config.ServerInfo;
+
+import java.util.*;
+
+/**
+ * Immutable view of every game, for commands to read without locks. ServerRegistry publishes a new one on each
+ * change. Changes are rare next to reads (tab completion runs on every key press), so each change copies the
+ * directory and reads never allocate beyond the returned view.
+ */
+public final class GameDirectory {
+  public static final GameDirectory EMPTY = new GameDirectory(Map.of(), new String[0]);
+
+  public enum State {
+    STARTING, READY
+  }
+
+  /**
+   * @param game
+   * @param server The server registered in BungeeCord. Null while the game is starting
+   */
+  public record Entry(GameInfo game, ServerInfo server) {
+    public State state() {
+      return server == null ? State.STARTING : State.READY;
+    }
+
+    public int players() {
+      return server == null ? 0 : server.getPlayers().size();
+    }
+  }
+
+  private final Map<String, Entry> entries;
+  // sorted, for prefix lookups
+  private final String[] ids;
+  private final List<String> idList;
+
+  private GameDirectory(Map<String, Entry> entries, String[] ids) {
+    this.entries = entries;
+    this.ids = ids;
+    this.idList = Collections.unmodifiableList(Arrays.asList(ids));
+  }
+
+  /**
+   * @param entry
+   * @return A copy of this directory with the entry added or replaced
+   */
+  GameDirectory with(Entry entry) {
+    String id = entry.game().id();
+    Map<String, Entry> newEntries = new HashMap<>(entries);
+    newEntries.put(id, entry);
+
+    int index = Arrays.binarySearch(ids, id);
+    if (index >= 0) {
+      return new GameDirectory(newEntries, ids);
+    }
+    int insertion = -index - 1;
+    String[] newIds = new String[ids.length + 1];
+    System.arraycopy(ids, 0, newIds, 0, insertion);
+    newIds[insertion] = id;
+    System.arraycopy(ids, insertion, newIds, insertion + 1, ids.length - insertion);
+    return new GameDirectory(newEntries, newIds);
+  }
+
+  /**
+   * @param id
+   * @return A copy of this directory without the game. This directory if it has no such game
+   */
+  GameDirectory without(String id) {
+    int index = Arrays.binarySearch(ids, id);
+    if (index < 0) {
+      return this;
+    }
+    Map<String, Entry> newEntries = new HashMap<>(entries);
+    newEntries.remove(id);
+    String[] newIds = new String[ids.length - 1];
+    System.arraycopy(ids, 0, newIds, 0, index);
+    System.arraycopy(ids, index + 1, newIds, index, ids.length - index - 1);
+    return new GameDirectory(newEntries, newIds);
+  }
+
+  /**
+   * @param id
+   * @return Null if there's no game with this ID
+   */
+  public Entry get(String id) {
+    return entries.get(id);
+  }
+
+  public int size() {
+    return ids.length;
+  }
+
+  /**
+   * @return Every game ID, sorted
+   */
+  public List<String> getIds() {
+    return idList;
+  }
+
+  /**
+   * @param prefix
+   * @return Sorted game IDs starting with the prefix
+   */
+  public List<String> withPrefix(String prefix) {
+    prefix = prefix.toLowerCase();
+    int from = Arrays.binarySearch(ids, prefix);
+    from = from >= 0 ? from : -from - 1;
+    // IDs with the prefix are all together from there. Find the first one after them
+    int low = from;
+    int high = ids.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (ids[mid].startsWith(prefix)) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return idList.subList(from, low);
+  }
+}
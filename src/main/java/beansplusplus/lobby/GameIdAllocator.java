@@ -0,0 +1,159 @@
+package beansplusplus.lobby;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Hands out game IDs from memory. Each ID is a fixed length number in some radix, e.g. 2 digits of base 10 (the
+ * default, 100 games) or 3 digits of base 36 (46656 games). A bit per ID records whether it's taken.
+ * IDs are reconciled from the cluster every tick. IDs handed out since then are kept until the cluster shows them,
+ * so a tick can't free an ID whose game is still being created. With several proxies the allocator only avoids the
+ * IDs this proxy knows of, see KubernetesManager.reserveGameId.
+ */
+public class GameIdAllocator {
+  private final int radix;
+  private final int length;
+  private final int capacity;
+
+  private final BitSet taken = new BitSet();
+  // IDs that must never be handed out, e.g. the lobby's server name
+  private final BitSet reserved = new BitSet();
+  // handed out, but not seen in the cluster yet
+  private final Set<String> pending = new HashSet<>();
+  // where the search for a free ID starts. Moves forward so a freed ID isn't reused straight away
+  private int cursor;
+
+  /**
+   * K8S_GAME_ID_RADIX and K8S_GAME_ID_LENGTH set the ID space
+   * @return
+   */
+  public static GameIdAllocator fromEnv() {
+    int radix = Env.getInt("K8S_GAME_ID_RADIX", 10);
+    int length = Env.getInt("K8S_GAME_ID_LENGTH", 2);
+    return new GameIdAllocator(radix, length);
+  }
+
+  /**
+   * @param radix 2 to 36. Digits above 9 are lower case letters
+   * @param length Number of digits in an ID
+   */
+  public GameIdAllocator(int radix, int length) {
+    if (radix < Character.MIN_RADIX || radix > Character.MAX_RADIX) {
+      throw new IllegalArgumentException("Game ID radix must be between 2 and 36. Got: " + radix);
+    }
+    double size = Math.pow(radix, length);
+    if (length < 1 || size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Game ID space " + radix + "^" + length + " is empty or too large");
+    }
+    this.radix = radix;
+    this.length = length;
+    this.capacity = (int) size;
+    // proxies start at different places, so creates on two proxies at once rarely pick the same ID
+    this.cursor = ThreadLocalRandom.current().nextInt(capacity);
+
+    int lobby = indexOf("lobby");
+    if (lobby >= 0) {
+      reserved.set(lobby);
+      taken.set(lobby);
+    }
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public synchronized int getAllocated() {
+    return taken.cardinality() - reserved.cardinality();
+  }
+
+  /**
+   * Take a free ID. No API calls
+   * @return
+   * @throws GameServerException If every ID is taken
+   */
+  public synchronized String allocate() throws GameServerException {
+    int index = taken.nextClearBit(cursor);
+    if (index >= capacity) {
+      index = taken.nextClearBit(0);
+    }
+    if (index >= capacity) {
+      throw new GameServerException("Out of games IDs. The number of games exceeds " + capacity);
+    }
+
+    taken.set(index);
+    cursor = index + 1;
+    String id = toId(index);
+    pending.add(id);
+    return id;
+  }
+
+  /**
+   * Free an ID after its game is deleted, or failed to be created
+   * @param id
+   */
+  public synchronized void release(String id) {
+    pending.remove(id);
+    int index = indexOf(id);
+    if (index >= 0 && !reserved.get(index)) {
+      taken.clear(index);
+    }
+  }
+
+  /**
+   * Stop handing out an ID that turned out to be in use by a game this proxy hasn't seen yet. It stays taken until
+   * the cluster is reconciled, which frees it if its game is gone by then
+   * @param id
+   */
+  public synchronized void skip(String id) {
+    pending.remove(id);
+  }
+
+  /**
+   * Make the taken IDs match the cluster, plus IDs handed out that the cluster doesn't show yet
+   * @param inUse IDs of every game in the cluster
+   */
+  public synchronized void reconcile(Collection<String> inUse) {
+    taken.clear();
+    taken.or(reserved);
+    for (String id : inUse) {
+      pending.remove(id);
+      int index = indexOf(id);
+      if (index >= 0) {
+        taken.set(index);
+      }
+    }
+    for (String id : pending) {
+      taken.set(indexOf(id));
+    }
+  }
+
+  private String toId(int index) {
+    StringBuilder id = new StringBuilder(Integer.toString(index, radix));
+    while (id.length() < length) {
+      id.insert(0, '0');
+    }
+    return id.toString();
+  }
+
+  /**
+   * @param id
+   * @return Position of the ID's bit. -1 if the ID isn't in this ID space, e.g. from a previous configuration
+   */
+  private int indexOf(String id) {
+    if (id.length() != length) {
+      return -1;
+    }
+    int index = 0;
+    for (char c : id.toCharArray()) {
+      int digit = Character.digit(c, radix);
+      if (digit < 0 || Character.isUpperCase(c)) {
+        return -1;
+      }
+      index = index * radix + digit;
+    }
+    return index;
+  }
+}
@@ -0,0 +1,18 @@
+package beansplusplus.lobby;
+
+import java.net.InetSocketAddress;
+import java.time.Instant;
+
+/**
+ * What's known about a game from its pod
+ * @param id Game ID
+ * @param type Null if the pod's game type isn't known to this version of the lobby
+ * @param creator Username of the player who created the game. Empty if not known
+ * @param startTime When the game was created, or claimed from the standby pool
+ * @param address Address of the game server. Null until the pod is ready
+ */
+public record GameInfo(String id, GameType type, String creator, Instant startTime, InetSocketAddress address) {
+  public boolean isReady() {
+    return address != null;
+  }
+}
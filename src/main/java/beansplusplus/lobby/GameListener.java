@@ -0,0 +1,18 @@
+package beansplusplus.lobby;
+
+/**
+ * Notified by KubernetesManager as soon as a game pod's readiness or address changes
+ */
+public interface GameListener {
+  /**
+   * Called when a game pod is created, becomes ready, stops being ready, or the address of a ready game pod changes
+   * @param game The game's current state. Its address is null while the pod isn't ready
+   */
+  void onGameChanged(GameInfo game);
+
+  /**
+   * Called when a game pod is deleted
+   * @param id Game ID
+   */
+  void onGameStopped(String id);
+}
@@ -7,19 +7,46 @@ import net.md_5.bungee.api.config.ServerInfo;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
 import net.md_5.bungee.api.plugin.Plugin;
 
-import java.net.InetSocketAddress;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
 
-public class GameManager {
+public class GameManager implements GameListener {
   private static final GameManager GAME_MANAGER = new GameManager();
-  private static final KubernetesManager K8S_MANAGER = new KubernetesManager();
 
   public static GameManager getInstance() {
     return GAME_MANAGER;
   }
 
+  private static final long CREATE_TIMEOUT_MINUTES = 5;
+  // time allowed for the API calls of a create or delete, including time queued
+  private static final Duration OPERATION_TIMEOUT = Duration.ofSeconds(60);
+
   private Plugin plugin;
+  private ServerRegistry registry;
+  private ServerStatusService statusService;
+  private RegistrySnapshot registrySnapshot;
+  // connects to the cluster off the enable thread. Null until then
+  private volatile KubernetesManager k8sManager;
+  // games registered from the snapshot that the cluster hasn't confirmed yet. Null once the cluster has synced
+  private volatile Set<String> unverifiedGames = Set.of();
+  private final Matchmaker matchmaker = new Matchmaker(this);
+  private final Drainer drainer = new Drainer(this);
+  private final AdmissionQueue admission = new AdmissionQueue(this);
+  private final IdleTracker idleTracker = new IdleTracker(this);
+
+  // Games that have been created but aren't ready yet. Completed by the pod watch, not by polling
+  private final Map<String, CompletableFuture<ServerInfo>> pendingGames = new ConcurrentHashMap<>();
 
   /**
    * Set the game manager plugin instance
@@ -27,134 +54,416 @@ public class GameManager {
    */
   public void registerPlugin(Plugin plugin) {
     this.plugin = plugin;
+    registry = new ServerRegistry(ProxyServer.getInstance().getServers(),
+        (id, address) -> ProxyServer.getInstance().constructServerInfo(id, address, "BeansPlusPlus Server", false));
+    registry.addListener(this);
+
+    // games from before a restart are joinable straight away, and checked against the cluster once it has synced.
+    // The chart can mount a volume for the snapshot, otherwise it's lost with the container
+    Path snapshotDir = Path.of(Env.getString("REGISTRY_SNAPSHOT_DIR", plugin.getDataFolder().getPath()));
+    registrySnapshot = new RegistrySnapshot(snapshotDir.resolve("registry.snapshot"), registry);
+    Set<String> restored = new HashSet<>();
+    for (GameInfo game : registrySnapshot.read()) {
+      registry.onGameChanged(game);
+      restored.add(game.id());
+    }
+    unverifiedGames = restored;
+    registry.addListener(registrySnapshot);
+    if (!restored.isEmpty()) {
+      observeStartup("joinable");
+      plugin.getLogger().info("Registered " + restored.size() + " game(s) from the registry snapshot");
+    }
+
+    statusService = new ServerStatusService(registry);
+    statusService.start();
+    ProxyServer.getInstance().getPluginManager().registerListener(plugin, idleTracker);
+    startKubernetes(plugin);
+    Metrics.getInstance().gauge("beans_registered_servers", "Game servers registered in BungeeCord", () -> {
+      GameDirectory directory = getDirectory();
+      return directory.getIds().stream().filter((id) -> directory.get(id).state() == GameDirectory.State.READY).count();
+    });
   }
 
-  public void tick() {
-    try {
-      Map<String, InetSocketAddress> k8sGames = K8S_MANAGER.getGames();
-      // add new games to bungeecord
-      for (String id : k8sGames.keySet()) {
-        if (k8sGames.get(id) == null) {
-          continue;
-        }
-        if (!ProxyServer.getInstance().getServers().containsKey(id)) {
-          ServerInfo info = ProxyServer.getInstance().constructServerInfo(id, k8sGames.get(id), "BeansPlusPlus Server", false);
-          ProxyServer.getInstance().getServers().put(id, info);
-        }
+  /**
+   * Load the Kubernetes client, job templates and cluster cache on their own thread, so enabling the plugin doesn't
+   * wait for them
+   */
+  private void startKubernetes(Plugin plugin) {
+    Thread thread = new Thread(() -> {
+      try {
+        ArtifactCache.getInstance().start(plugin.getDataFolder().toPath().resolve("artifacts"), KubernetesManager.getArtifactUrls());
+      } catch (IOException e) {
+        plugin.getLogger().severe("Failed to start the artifact cache, so pods will download plugins from blob storage: " + e.getMessage());
       }
-      // remove old games from bungeecord
-      for (String id : ProxyServer.getInstance().getServers().keySet()) {
-        if (id.equals("lobby")) {
-          continue;
-        }
-        if (!k8sGames.containsKey(id) || k8sGames.get(id) == null) {
-          ProxyServer.getInstance().getServers().remove(id);
-        }
+      try {
+        KubernetesManager manager = new KubernetesManager();
+        manager.addGameListener(registry);
+        k8sManager = manager;
+        observeStartup("kubernetes_ready");
+      } catch (RuntimeException | Error e) {
+        plugin.getLogger().severe("Failed to connect to Kubernetes: " + e);
       }
+    }, "beans-kubernetes-init");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * @return
+   * @throws GameServerException If the cluster connection is still being set up
+   */
+  private KubernetesManager getK8sManager() throws GameServerException {
+    KubernetesManager manager = k8sManager;
+    if (manager == null) {
+      throw new GameServerException("Still connecting to Kubernetes");
+    }
+    return manager;
+  }
+
+  /**
+   * Once the cluster cache has synced, remove games restored from the snapshot that it doesn't have. Games it does
+   * have were registered again from their pods as the cache loaded them
+   */
+  private void verifyRestoredGames(KubernetesManager manager) {
+    Set<String> unverified = unverifiedGames;
+    if (unverified == null || !manager.hasSynced()) {
+      return;
+    }
+    unverifiedGames = null;
+    if (unverified.isEmpty()) {
+      // nothing was restored, so games are joinable from now
+      observeStartup("joinable");
+    }
+    observeStartup("verified");
+    for (String id : unverified) {
+      GameInfo game = manager.getGame(id);
+      if (game == null) {
+        registry.onGameStopped(id);
+      } else {
+        registry.onGameChanged(game);
+      }
+    }
+  }
+
+  /**
+   * Record how long after the JVM started a startup milestone was reached
+   * @param milestone
+   */
+  private static void observeStartup(String milestone) {
+    double seconds = ManagementFactory.getRuntimeMXBean().getUptime() / 1000.0;
+    Metrics.getInstance().gauge("beans_startup_seconds", "Seconds from the proxy starting until games were joinable, "
+        + "Kubernetes was ready or restored games were verified", () -> seconds, "milestone", milestone);
+  }
+
+  /**
+   * Called by the registry after a game's server is registered or removed
+   */
+  @Override
+  public void onGameChanged(GameInfo game) {
+    CompletableFuture<ServerInfo> pending = pendingGames.get(game.id());
+    ServerInfo info = registry.get(game.id());
+    if (pending != null && info != null) {
+      pending.complete(info);
+    }
+  }
+
+  @Override
+  public void onGameStopped(String id) {
+  }
 
-      // tick kubernetes manager
-      K8S_MANAGER.tick();
+  /**
+   * Stop watching the cluster. Called when the plugin is disabled
+   */
+  public void shutdown() {
+    if (statusService != null) {
+      statusService.stop();
+    }
+    drainer.stop();
+    if (registrySnapshot != null) {
+      registrySnapshot.stop();
+    }
+    LifecycleExecutor.getInstance().shutdown();
+    if (k8sManager != null) {
+      k8sManager.shutdown();
+    }
+  }
+
+  public void tick() {
+    long start = System.nanoTime();
+    matchmaker.tick();
+    KubernetesManager manager = k8sManager;
+    if (manager == null) {
+      // still connecting
+      return;
+    }
+    admission.tick(manager);
+    manager.setQueuedGames(admission.size());
+    idleTracker.tick(manager.isLeader());
+    try {
+      verifyRestoredGames(manager);
+      // servers are registered by the pod watch, not here
+      manager.tick();
     } catch (GameServerException e) {
-      e.printStackTrace();
+      ProxyServer.getInstance().getLogger().log(Level.WARNING, "Reconcile tick failed", e);
+    } finally {
+      Metrics.getInstance().histogram("beans_reconcile_tick_seconds", "Duration of reconcile ticks", Metrics.LATENCY_BUCKETS).observeSince(start);
     }
   }
 
   /**
-   * Create a new server by game type
+   * @return Number of lifecycle operations a new create would wait for
+   */
+  public int getPendingOperations() {
+    return LifecycleExecutor.getInstance().getPending();
+  }
+
+  /**
+   * Create a new server by game type on a lifecycle thread
    *
    * @param type
    * @param creator
-   * @return
+   * @return false if the lifecycle queue is full and the game won't be created
+   */
+  public boolean createServerAsync(GameType type, ProxiedPlayer creator) {
+    return submitCreate(type, creator.getName()) != null;
+  }
+
+  /**
+   * @param username
+   * @return true if the player has a game creation waiting for room in the cluster. See AdmissionQueue
+   */
+  public boolean isAwaitingAdmission(String username) {
+    return admission.contains(username);
+  }
+
+  /**
+   * Create a new server by game type on a lifecycle thread, once the cluster has room for it
+   *
+   * @param type
+   * @param creatorUsername
+   * @return Completes with the registered server once the game is ready. Null if the admission queue is full, the
+   * creator already has a game waiting, or the lifecycle queue is full
+   */
+  CompletableFuture<ServerInfo> submitCreate(GameType type, String creatorUsername) {
+    CompletableFuture<KubernetesManager.Admission> admitted = admission.enqueue(type, creatorUsername, k8sManager);
+    if (admitted == null) {
+      return null;
+    }
+    if (admitted.isDone()) {
+      return submitAdmitted(type, creatorUsername, admitted.join());
+    }
+    return admitted.thenCompose((granted) -> {
+      CompletableFuture<ServerInfo> created = submitAdmitted(type, creatorUsername, granted);
+      if (created == null) {
+        GameServerException e = new GameServerException("Too many games are being created right now");
+        onCreateFailed(creatorUsername, e);
+        return CompletableFuture.failedFuture(e);
+      }
+      return created;
+    });
+  }
+
+  /**
+   * @param granted Room for the game, released if the creation doesn't get as far as using it
+   * @return Null if the lifecycle queue is full
    */
-  public void createServerAsync(GameType type, ProxiedPlayer creator) {
-    final String creatorUsername = creator.getName();
+  private CompletableFuture<ServerInfo> submitAdmitted(GameType type, String creatorUsername, KubernetesManager.Admission granted) {
+    CompletableFuture<CompletableFuture<ServerInfo>> submitted = LifecycleExecutor.getInstance()
+        .submit("create", () -> createServer(type, creatorUsername, granted), OPERATION_TIMEOUT);
+    if (submitted.isCompletedExceptionally()) {
+      granted.release();
+      return null;
+    }
 
-    ProxyServer.getInstance().getScheduler().schedule(plugin, () -> {
-      createServer(type, creatorUsername);
-    }, 0, TimeUnit.SECONDS);
+    submitted.whenComplete((pending, error) -> {
+      granted.release();
+      if (unwrap(error) instanceof TimeoutException) {
+        onCreateFailed(creatorUsername, new GameServerException("Creating the game took longer than " + OPERATION_TIMEOUT.toSeconds() + " seconds"));
+      }
+    });
+    return submitted.thenCompose((pending) -> pending);
   }
 
+  /**
+   * Queue a player for a game type. See Matchmaker
+   *
+   * @param player
+   * @param type
+   * @return Position in the queue. 0 if the player was placed in a game straight away
+   */
+  public int queue(ProxiedPlayer player, GameType type) {
+    return matchmaker.join(player, type);
+  }
+
+  /**
+   * @param player
+   * @return false if the player wasn't queued
+   */
+  public boolean leaveQueue(ProxiedPlayer player) {
+    return matchmaker.leave(player);
+  }
+
+  /**
+   * Stop new joins, move the game's players to the lobby, then delete it. See Drainer
+   *
+   * @param id
+   * @return false if the game is already draining
+   */
+  public boolean drainGame(String id) {
+    return drainer.drain(id);
+  }
+
+  /**
+   * @param id
+   * @return true if the game is being emptied for deletion, and takes no new players
+   */
+  public boolean isDraining(String id) {
+    return drainer.isDraining(id);
+  }
+
+  /**
+   * Delete a game now, with anyone still on it. Runs on a lifecycle thread
+   *
+   * @param id
+   */
   public void deleteGame(String id) {
-    ProxyServer.getInstance().getServers().remove(id);
-    try {
-      K8S_MANAGER.deleteGame(id);
+    registry.onGameStopped(id);
+
+    LifecycleExecutor.getInstance().submit("delete", () -> {
+      getK8sManager().deleteGame(id);
+      return null;
+    }, OPERATION_TIMEOUT).whenComplete((result, error) -> {
+      if (error != null) {
+        ProxyServer.getInstance().getLogger().severe("Failed to delete game " + id + ": " + unwrap(error));
+        return;
+      }
 
       for (ProxiedPlayer lobbyPlayer : ProxyServer.getInstance().getServerInfo("lobby").getPlayers()) {
         lobbyPlayer.sendMessage(new ComponentBuilder("Deleted game with ID: " + id).color(ChatColor.RED).create());
       }
-
-    } catch (GameServerException e) {
-      e.printStackTrace();
-    }
+    });
   }
 
   /**
-   * Create a new server by game type
+   * Create a new server by game type. Returns as soon as the job is created. No thread waits for the game to start
    *
    * @param type
-   * @param type
    * @param creatorUsername
-   * @return
+   * @param granted Room for the game from the admission queue. Null if it wasn't admitted
+   * @return Completes with the registered server once the game pod is ready. Fails after a timeout. Cancelling it
+   * stops waiting for the game
    */
-  public void createServer(GameType type, String creatorUsername) {
+  public CompletableFuture<ServerInfo> createServer(GameType type, String creatorUsername, KubernetesManager.Admission granted) {
+    long start = System.nanoTime();
+    ProxiedPlayer player = ProxyServer.getInstance().getPlayer(creatorUsername);
+    if (player == null) return CompletableFuture.failedFuture(new CancellationException("Creator left"));
+
+    // tell everyone a game is being created
+    for (ProxiedPlayer lobbyPlayer : ProxyServer.getInstance().getServerInfo("lobby").getPlayers()) {
+      lobbyPlayer.sendMessage(new ComponentBuilder(creatorUsername + " is creating a game of " + type.string()).color(ChatColor.GREEN).create());
+    }
+
+    // create the game
+    String id;
+    KubernetesManager manager;
     try {
-      ProxiedPlayer player = ProxyServer.getInstance().getPlayer(creatorUsername);
-      if (player == null) return;
+      manager = getK8sManager();
+      id = manager.createGame(type, creatorUsername, granted);
+    } catch (GameServerException e) {
+      onCreateFailed(creatorUsername, e);
+      return CompletableFuture.failedFuture(e);
+    }
 
-      // tell everyone a game is being created
-      for (ProxiedPlayer lobbyPlayer : ProxyServer.getInstance().getServerInfo("lobby").getPlayers()) {
-        lobbyPlayer.sendMessage(new ComponentBuilder(creatorUsername + " is creating a game of " + type.string()).color(ChatColor.GREEN).create());
+    // wait for game to create
+    CompletableFuture<ServerInfo> future = new CompletableFuture<>();
+    pendingGames.put(id, future);
+    future.orTimeout(CREATE_TIMEOUT_MINUTES, TimeUnit.MINUTES).whenComplete((info, error) -> {
+      pendingGames.remove(id, future);
+      if (error == null) {
+        Metrics.getInstance().histogram("beans_game_create_seconds", "Time from /game create to the game being joinable", Metrics.LATENCY_BUCKETS)
+            .observeSince(start);
+        onCreated(type, creatorUsername, id, info);
+      } else if (unwrap(error) instanceof TimeoutException) {
+        onCreateFailed(creatorUsername, new GameServerException("World hasn't started after " + CREATE_TIMEOUT_MINUTES + " minutes"));
       }
+    });
 
-      // create the game
-      String id = K8S_MANAGER.createGame(type.getJarURL());
-
-      // wait for game to create
-      boolean found = false;
-      for (int i = 0; i < 300; i++) {
-        Thread.sleep(1000);
-        Map<String, InetSocketAddress> games = K8S_MANAGER.getGames();
-        if (ProxyServer.getInstance().getServers().containsKey(id)) {
-          found = true;
-          break;
-        }
-      }
-      if (!found) {
-        throw new GameServerException("World hasn't started after 5 minutes");
-      }
+    // a claimed standby game is ready already, and a new pod may have become ready before the future was registered
+    GameInfo game = manager.getGame(id);
+    if (game != null) {
+      registry.onGameChanged(game);
+      onGameChanged(game);
+    }
+
+    return future;
+  }
 
-      // Tell everyone a game has been created
+  private static Throwable unwrap(Throwable error) {
+    return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+  }
+
+  private void onCreated(GameType type, String creatorUsername, String id, ServerInfo info) {
+    ProxiedPlayer player = ProxyServer.getInstance().getPlayer(creatorUsername);
+
+    // Tell everyone a game has been created
+    if (player != null) {
       player.sendMessage(new ComponentBuilder("Server created successfully! ID: " + id).color(ChatColor.GREEN).create());
-      for (ProxiedPlayer lobbyPlayer : ProxyServer.getInstance().getServerInfo("lobby").getPlayers()) {
-        lobbyPlayer.sendMessage(new ComponentBuilder(creatorUsername + " started a game of " + type.string() + ". Join by running /game join " + id).color(ChatColor.GREEN).create());
-      }
+    }
+    for (ProxiedPlayer lobbyPlayer : ProxyServer.getInstance().getServerInfo("lobby").getPlayers()) {
+      lobbyPlayer.sendMessage(new ComponentBuilder(creatorUsername + " started a game of " + type.string() + ". Join by running /game join " + id).color(ChatColor.GREEN).create());
+    }
+
+    // Connect the creator to the game
+    if (player != null) {
+      player.connect(info);
+    }
+  }
 
-      // Connect the creator to the game
-      player.connect(ProxyServer.getInstance().getServerInfo(id));
+  private void onCreateFailed(String creatorUsername, GameServerException e) {
+    ProxyServer.getInstance().getLogger().severe("Failed to start kubernetes pod. Printing stacktrace...");
 
-    } catch (GameServerException e) {
-      ProxyServer.getInstance().getLogger().severe("Failed to start kubernetes pod. Printing stacktrace...");
+    e.logError();
 
-      e.logError();
+    ProxiedPlayer player = ProxyServer.getInstance().getPlayer(creatorUsername);
 
-      ProxiedPlayer player = ProxyServer.getInstance().getPlayer(creatorUsername);
+    if (player == null) return;
 
-      if (player == null) return;
+    player.sendMessage(new ComponentBuilder("Server failed to start. Please contact the server administrator.").color(ChatColor.DARK_RED).create());
+  }
 
-      player.sendMessage(new ComponentBuilder("Server failed to start. Please contact the server administrator.").color(ChatColor.DARK_RED).create());
-    } catch (InterruptedException e) {
-      e.printStackTrace();
+  /**
+   * Register a game whose pod says its server is ready, without waiting for the readiness probe. Completes a pending
+   * create of the game straight away
+   *
+   * @param podName
+   * @param from Address the request came from
+   * @return The game. Null if the pod is a standby game
+   * @throws GameServerException If the pod can't be registered
+   */
+  public GameInfo registerReady(String podName, InetAddress from) throws GameServerException {
+    GameInfo game = getK8sManager().registerReady(podName, from);
+    if (game != null && registry != null) {
+      registry.onGameChanged(game);
     }
+    return game;
   }
 
   /**
-   * Get all game server ids available to join
+   * Get every game, starting or ready. Cheap enough to call on every key press
    *
    * @return
    */
-  public Set<String> getAvailableGameIds() {
-    Set<String> ids = new HashSet<>(ProxyServer.getInstance().getServers().keySet());
-    ids.remove("lobby");
-    return ids;
+  public GameDirectory getDirectory() {
+    return registry == null ? GameDirectory.EMPTY : registry.getDirectory();
+  }
+
+  /**
+   * Get the last pinged status of a game. Never pings
+   *
+   * @param id
+   * @return Null if the game hasn't answered a ping recently
+   */
+  public ServerStatusService.ServerStatus getStatus(String id) {
+    return statusService.get(id);
   }
 }
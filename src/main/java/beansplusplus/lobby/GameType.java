@@ -20,7 +20,15 @@ public enum GameType {
   }
 
   public String getJarURL() {
-    return jarURL;
+    String override = GameCatalog.getInstance().getJarUrl(this);
+    return override == null ? jarURL : override;
+  }
+
+  /**
+   * @return Resources for games of this type. See GameCatalog
+   */
+  public ResourceProfile getProfile() {
+    return GameCatalog.getInstance().getProfile(this);
   }
 
   /**
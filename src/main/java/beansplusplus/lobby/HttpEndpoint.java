@@ -0,0 +1,55 @@
+package beansplusplus.lobby;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Small HTTP server run by the proxy plugin for in-cluster clients
+ */
+public class HttpEndpoint {
+  private static final HttpEndpoint HTTP_ENDPOINT = new HttpEndpoint();
+  private static final int PORT = Env.getInt("HTTP_PORT", 8080);
+  private static final int THREADS = 4;
+
+  public static HttpEndpoint getInstance() {
+    return HTTP_ENDPOINT;
+  }
+
+  private HttpServer server;
+  private ExecutorService executor;
+
+  public synchronized void start() throws IOException {
+    if (server != null) return;
+
+    executor = Executors.newFixedThreadPool(THREADS);
+    server = HttpServer.create(new InetSocketAddress(PORT), 0);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  public synchronized void stop() {
+    if (server == null) return;
+
+    server.stop(0);
+    executor.shutdown();
+    server = null;
+  }
+
+  /**
+   * Serve a path prefix. Must be called after start
+   * @param path
+   * @param handler
+   * @throws IOException If the server isn't running, e.g. because start failed
+   */
+  public synchronized void register(String path, HttpHandler handler) throws IOException {
+    if (server == null) {
+      throw new IOException("The HTTP endpoint isn't running, so " + path + " can't be served");
+    }
+    server.createContext(path, handler);
+  }
+}
@@ -0,0 +1,159 @@
+package beansplusplus.lobby;
+
+import net.md_5.bungee.api.ChatColor;
+import net.md_5.bungee.api.ProxyServer;
+import net.md_5.bungee.api.chat.ComponentBuilder;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+import net.md_5.bungee.api.event.ServerConnectedEvent;
+import net.md_5.bungee.api.plugin.Listener;
+import net.md_5.bungee.event.EventHandler;
+
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Closes games nobody is on, long before the server's own autostop would. Keeps a short timeline of each ready
+ * game's player count from the online count its server answers pings with, which counts players of every proxy.
+ * A player connecting through this proxy marks the game in use straight away. Only a ping can say a game is empty.
+ * Once a game has been empty for IDLE_TIMEOUT_SECONDS the leader proxy drains and deletes it, after warning its
+ * creator IDLE_WARNING_SECONDS before. The pod time saved compared to autostop is exported as reclaimed pod-minutes.
+ * An IDLE_TIMEOUT_SECONDS of 0 closes games once they've been empty for the server's autostop timeout, as autostop
+ * would. Claimed standby games need this, as their server was started with a day long AUTOSTOP_TIMEOUT_INIT.
+ */
+public class IdleTracker implements Listener {
+  private static final Duration TIMEOUT = Duration.ofSeconds(Env.getLong("IDLE_TIMEOUT_SECONDS", 300));
+  private static final Duration WARNING = Duration.ofSeconds(Env.getLong("IDLE_WARNING_SECONDS", 60));
+  // player count changes kept for each game
+  private static final int TIMELINE_LENGTH = 32;
+
+  private record Sample(long time, int players) {
+  }
+
+  private static class Timeline {
+    final Deque<Sample> samples = new ArrayDeque<>();
+    // when the last player left. -1 while anyone is on
+    long emptySince = -1;
+    boolean warned = false;
+
+    int players() {
+      return samples.isEmpty() ? 0 : samples.getLast().players();
+    }
+
+    int peak() {
+      return samples.stream().mapToInt(Sample::players).max().orElse(0);
+    }
+
+    void record(long time, int players) {
+      samples.addLast(new Sample(time, players));
+      if (samples.size() > TIMELINE_LENGTH) {
+        samples.removeFirst();
+      }
+      if (players > 0) {
+        emptySince = -1;
+        warned = false;
+      } else if (emptySince < 0) {
+        emptySince = time;
+      }
+    }
+  }
+
+  private final GameManager gameManager;
+  private final Map<String, Timeline> timelines = new HashMap<>();
+  private final Metrics.Counter reclaimedGames;
+  private final Metrics.Counter reclaimedPodMinutes;
+
+  public IdleTracker(GameManager gameManager) {
+    this.gameManager = gameManager;
+    Metrics metrics = Metrics.getInstance();
+    reclaimedGames = metrics.counter("beans_idle_reclaimed_games_total", "Empty games closed by the proxy before they autostopped");
+    reclaimedPodMinutes = metrics.counter("beans_idle_reclaimed_pod_minutes_total", "Pod-minutes empty games would have run until autostop");
+    metrics.gauge("beans_idle_games", "Ready games with nobody on them", () -> getIdleNum());
+  }
+
+  private synchronized int getIdleNum() {
+    return (int) timelines.values().stream().filter((timeline) -> timeline.emptySince >= 0).count();
+  }
+
+  @EventHandler
+  public synchronized void onServerConnected(ServerConnectedEvent event) {
+    Timeline timeline = timelines.get(event.getServer().getInfo().getName());
+    if (timeline != null && timeline.players() == 0) {
+      timeline.record(System.nanoTime(), 1);
+    }
+  }
+
+  /**
+   * Update the timelines from the latest pings. On the leader, also warn about games that are about to be closed,
+   * and close games that have been empty too long. Called from the reconcile tick
+   * @param leader true if this proxy runs the reconciler. Otherwise every proxy would close the same games
+   */
+  public void tick(boolean leader) {
+    Duration timeout = TIMEOUT.isZero() ? KubernetesManager.getAutostopTimeout() : TIMEOUT;
+    if (timeout.isZero()) {
+      return;
+    }
+    GameDirectory directory = gameManager.getDirectory();
+    long now = System.nanoTime();
+    Map<String, Timeline> idle = new HashMap<>();
+    synchronized (this) {
+      timelines.keySet().removeIf((id) -> directory.get(id) == null || directory.get(id).state() != GameDirectory.State.READY);
+      for (String id : directory.getIds()) {
+        GameDirectory.Entry entry = directory.get(id);
+        if (entry.state() != GameDirectory.State.READY) {
+          continue;
+        }
+        ServerStatusService.ServerStatus status = gameManager.getStatus(id);
+        if (status == null) {
+          // not answering pings, so nothing is known about its players
+          continue;
+        }
+        Timeline timeline = timelines.get(id);
+        if (timeline == null) {
+          timeline = new Timeline();
+          timeline.record(now, status.online());
+          timelines.put(id, timeline);
+        } else if (timeline.players() != status.online() && status.time() > timeline.samples.getLast().time()) {
+          timeline.record(now, status.online());
+        }
+
+        if (!leader || timeline.emptySince < 0 || gameManager.isDraining(id)) {
+          continue;
+        }
+        long emptyFor = now - timeline.emptySince;
+        if (emptyFor >= timeout.toNanos()) {
+          idle.put(id, timeline);
+        } else if (!timeline.warned && emptyFor >= timeout.minus(WARNING).toNanos()) {
+          timeline.warned = true;
+          warn(entry.game());
+        }
+      }
+    }
+
+    // deleting takes locks of its own, so happens outside this one
+    for (Map.Entry<String, Timeline> game : idle.entrySet()) {
+      reclaim(game.getKey(), game.getValue(), now);
+    }
+  }
+
+  private static void warn(GameInfo game) {
+    ProxiedPlayer creator = ProxyServer.getInstance().getPlayer(game.creator());
+    if (creator != null) {
+      creator.sendMessage(new ComponentBuilder("Nobody is on your game " + game.id() + ". It will be closed in "
+          + WARNING.toSeconds() + " seconds unless someone joins.").color(ChatColor.YELLOW).create());
+    }
+  }
+
+  private void reclaim(String id, Timeline timeline, long now) {
+    if (!gameManager.drainGame(id)) {
+      return;
+    }
+    Duration emptyFor = Duration.ofNanos(now - timeline.emptySince);
+    Duration saved = KubernetesManager.getAutostopTimeout().minus(emptyFor);
+    reclaimedGames.inc();
+    if (!saved.isNegative()) {
+      reclaimedPodMinutes.inc(saved.toSeconds() / 60.0);
+    }
+    ProxyServer.getInstance().getLogger().info("Closing game " + id + ". It has been empty for " + emptyFor.toSeconds()
+        + " seconds, and had at most " + timeline.peak() + " player(s) in its last " + timeline.samples.size() + " changes");
+  }
+}
@@ -6,6 +6,26 @@ package beansplusplus.lobby;
  * When pre-gen done: stage=ready
  * When game starts: stage=game
  * When game done: stage=finished, game-finish-time=[time of game finishing]
+ * When retention time is up: stage=wiping, and a wipe job empties it
+ * When wiped: stage=recycled. The next pre-gen job takes it (stage=pre-gen) instead of creating a new PVC
+ * With node-local storage the first pod to use a PVC pins it to its node (volume.kubernetes.io/selected-node), so
+ * games take ready worlds on the least loaded node with room, and pre-gen fills the nodes with the fewest worlds
+ */
+
+/*
+ * Standby game jobs have pool=standby and no game-id. They are started games waiting for /game create.
+ * When claimed: pool=claimed, game-id=[new game ID]
+ */
+
+/*
+ * Game IDs: each game's ID is reserved by a config map, beans-game-id-[game ID], created before the game and deleted
+ * with it. Proxies allocate IDs from memory, and the apiserver refuses a second reservation of the same ID.
+ */
+
+/*
+ * World templates: K8S_WORLD_TEMPLATES template jobs each generate a world and archive it to the template volume.
+ * A succeeded template job (template-index=[index]) is kept as the record that its archive exists.
+ * Once any template exists, pre-gen jobs clone a template into the claim instead of generating a world.
  */
 
 /*
@@ -13,10 +33,12 @@ package beansplusplus.lobby;
  * This is intended behavior.
  */
 
+import com.google.gson.Gson;
 import io.kubernetes.client.custom.Quantity;
 import io.kubernetes.client.custom.V1Patch;
+import io.kubernetes.client.informer.ResourceEventHandler;
 import io.kubernetes.client.openapi.ApiException;
-import io.kubernetes.client.openapi.Configuration;
+import io.kubernetes.client.openapi.ApiClient;
 import io.kubernetes.client.openapi.apis.BatchV1Api;
 import io.kubernetes.client.openapi.apis.CoreV1Api;
 import io.kubernetes.client.openapi.models.*;
@@ -25,34 +47,73 @@ import io.kubernetes.client.util.Yaml;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Random;
-import java.util.Set;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
 public class KubernetesManager {
 
-    private static final String STORAGE_CLASS_NAME = withEnv("K8S_STORAGE_CLASS", "local-path");
-    private static final String NAMESPACE = withEnv("K8S_NAMESPACE", "beans-mini-games");
-    private static final String GAME_PRIORITY_CLASS = withEnv("K8S_GAME_PRIORITY_CLASS", "beans-game");
-    private static final String PRE_GEN_PRIORITY_CLASS = withEnv("K8S_PRE_GEN_PRIORITY_CLASS", "beans-pre-gen");
-    private static final String GAME_CONFIG_MAP = withEnv("K8S_GAME_CONFIG_MAP", "beans-game-config");
+    private static final String STORAGE_CLASS_NAME = Env.getString("K8S_STORAGE_CLASS", "local-path");
+    private static final String NAMESPACE = Env.getString("K8S_NAMESPACE", "beans-mini-games");
+    private static final String GAME_PRIORITY_CLASS = Env.getString("K8S_GAME_PRIORITY_CLASS", "beans-game");
+    private static final String PRE_GEN_PRIORITY_CLASS = Env.getString("K8S_PRE_GEN_PRIORITY_CLASS", "beans-pre-gen");
+    private static final String GAME_CONFIG_MAP = Env.getString("K8S_GAME_CONFIG_MAP", "beans-game-config");
+    // where game pods push their readiness, and the secret holding the token they authenticate with. See RegistrationEndpoint
+    private static final String REGISTRATION_URL = Env.getString("REGISTRATION_URL", "");
+    private static final String REGISTRATION_SECRET = Env.getString("K8S_REGISTRATION_SECRET", "beans-registration");
 
     private static final V1Job PRE_GEN_JOB = getJobTemplate("/pre-gen-job.yaml");
     private static final V1Job GAME_JOB = getJobTemplate("/game-job.yaml");
+    private static final V1Job WIPE_JOB = getJobTemplate("/wipe-job.yaml");
+    private static final V1Job TEMPLATE_JOB = getJobTemplate("/template-job.yaml");
+    private static final V1Job CLONE_JOB = getJobTemplate("/clone-job.yaml");
+    // golden worlds that pre-gen clones. 0 generates every world from scratch
+    private static final int WORLD_TEMPLATES = Env.getInt("K8S_WORLD_TEMPLATES", 0);
+    // ReadWriteMany PVC holding the template archives
+    private static final String TEMPLATE_CLAIM = Env.getString("K8S_TEMPLATE_CLAIM", "beans-world-templates");
+    // finished worlds are kept this long before they are wiped for reuse
+    private static final Duration WORLD_RETENTION = Duration.ofMinutes(Env.getLong("K8S_WORLD_RETENTION_MINUTES", 60));
+    // hard cap on world PVCs in every stage
+    private static final int MAX_WORLDS = Env.getInt("K8S_MAX_WORLDS", 50);
+    private static final int MAX_WIPE_JOBS = Env.getInt("K8S_MAX_WIPE_JOBS", 2);
     private static final String GAME_PLUGIN_URL = "https://saggyresourcepack.blob.core.windows.net/www/BeansGamePlugin-1.0-SNAPSHOT.jar";
-    private static final int PRE_GEN_NUM = 10;
-    private static final int PRE_GEN_MAX_SIMULTANEOUS_JOBS = 3;
+    // the plugins the pre-gen template downloads
+    private static final List<String> PRE_GEN_PLUGIN_URLS = PRE_GEN_JOB.getSpec().getTemplate().getSpec().getInitContainers().get(0).getCommand()
+            .stream().filter((arg) -> arg.startsWith("https://")).collect(Collectors.toList());
+    private static final Map<GameType, Integer> STANDBY_POOL_SIZES = getStandbyPoolSizes();
+    // Standby games have nobody on them until claimed, so they must not autostop in the meantime. The server reads it
+    // once, so claimed games keep it. IdleTracker closes them when they're empty instead
+    private static final String STANDBY_AUTOSTOP_TIMEOUT_INIT = "86400";
+    // Background deletes a job at once and leaves its pods to the garbage collector. Foreground keeps the job until
+    // its pods are gone
+    private static final String DELETE_PROPAGATION = Env.getString("K8S_DELETE_PROPAGATION", "Background");
+    private static final int MUTATION_THREADS = 4;
     private static final Random random = new Random();
+    private static final Gson GSON = new Gson();
+    // a reservation older than this whose game doesn't exist was left by a create that never finished
+    private static final Duration ID_RESERVATION_GRACE = Duration.ofMinutes(5);
+    private static final Duration ID_RESERVATION_SWEEP_INTERVAL = Duration.ofMinutes(5);
 
-    private static String withEnv(String key, String default_) {
-        Map<String, String> env = System.getenv();
-        if (env.containsKey(key)) {
-            return env.get(key);
+    /**
+     * @return The URLs of every plugin JAR that game and pre-gen pods download
+     */
+    public static List<String> getArtifactUrls() {
+        List<String> urls = new ArrayList<>(PRE_GEN_PLUGIN_URLS);
+        urls.add(GAME_PLUGIN_URL);
+        for (GameType type : GameType.values()) {
+            urls.add(type.getJarURL());
         }
-        System.out.println("Can't find env called: " + key + ". Using default: " + default_);
-        return default_;
+        return urls;
     }
 
     private static V1Job getJobTemplate(String filename) {
@@ -63,154 +124,1080 @@ public class KubernetesManager {
         }
     }
 
-    // Keep all state stored in Kubernetes
-    private final CoreV1Api coreV1Api = new CoreV1Api();
-    private final BatchV1Api batchV1Api = new BatchV1Api();
-
-    static {
+    private static ApiClient getDefaultClient(boolean watch) {
         try {
-            Configuration.setDefaultApiClient(Config.defaultClient());
+            ApiClient client = Config.defaultClient();
+            if (watch) {
+                // watches are long-lived requests, so they must not hit the default read timeout
+                client.setReadTimeout(0);
+            }
+            return client;
         } catch (IOException e) {
             throw new Error(e);
         }
     }
 
+    // Keep all state stored in Kubernetes. The cache is only a watch-fed copy of it for reads
+    private final ApiGateway api = ApiGateway.getInstance();
+    private final CoreV1Api coreV1Api;
+    private final BatchV1Api batchV1Api;
+    private final ClusterCache cache;
+    private final ExecutorService mutationExecutor = Executors.newFixedThreadPool(MUTATION_THREADS);
+    private final PreGenController preGenController = new PreGenController();
+    private final GameIdAllocator idAllocator = GameIdAllocator.fromEnv();
+    // null when this is the only proxy, so it always reconciles
+    private final LeaderElection leaderElection;
+    private final RightSizer rightSizer;
+    private final ClusterCapacity capacity;
+    // creations admitted through a standby game that haven't claimed one yet, by type
+    private final Map<GameType, Integer> standbyAdmissions = new EnumMap<>(GameType.class);
+    // creations waiting for room, see AdmissionQueue. Pre-gen waits while there are any
+    private volatile int queuedGames = 0;
+    private volatile boolean preGenPaused = false;
+    // rotates pre-gen through the templates. Only used by reconcile
+    private int templateCursor = 0;
+    // when the leader last deleted orphaned game ID reservations. Only used by reconcile
+    private long lastIdReservationSweep = System.nanoTime();
+    // pods whose startup phases have been recorded
+    private final Set<String> measuredPods = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Room for one game creation, from tryAdmit. Passed to createGame, which hands it to the game. Released if the
+     * creation doesn't get that far
+     */
+    public final class Admission {
+        private final GameType type;
+        // room held for a new pod. Null if admitted through a standby game, or before the cache synced
+        private final ClusterCapacity.Reservation reservation;
+        private final boolean standby;
+        private boolean done = false;
+
+        private Admission(GameType type, ClusterCapacity.Reservation reservation, boolean standby) {
+            this.type = type;
+            this.reservation = reservation;
+            this.standby = standby;
+        }
+
+        /**
+         * Give up the room, e.g. because the creation failed or was never started. Does nothing once the game has it
+         */
+        public void release() {
+            handOver(null);
+        }
+
+        /**
+         * @param jobName Job of the game's new pod, which keeps the reservation until the pod exists. Null if the
+         * game claimed a standby game, or the creation gave up
+         */
+        private void handOver(String jobName) {
+            synchronized (standbyAdmissions) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                if (standby) {
+                    standbyAdmissions.merge(type, -1, Integer::sum);
+                }
+            }
+            if (reservation != null) {
+                if (jobName == null) {
+                    capacity.release(reservation);
+                } else {
+                    capacity.bind(reservation, jobName);
+                }
+            }
+        }
+    }
+
+    /**
+     * Where a pre-gen world goes, chosen by a reconcile pass
+     * @param recycledClaim Recycled PVC to reuse. Null to create one
+     * @param node Node to steer a new PVC to. Null if it could go anywhere
+     */
+    private record PreGenTarget(String recycledClaim, String node) {
+    }
+
+    /**
+     * One independent change to the cluster, decided by a reconcile pass
+     */
+    private interface Mutation {
+        void apply() throws GameServerException, ApiException;
+    }
+
+    public KubernetesManager() {
+        this(getDefaultClient(false), getDefaultClient(true), Env.getBoolean("K8S_LEADER_ELECTION", true));
+    }
+
+    /**
+     * A manager that always reconciles, as if it were the only proxy
+     * @param client Client for API requests
+     * @param watchClient Client for watches. It must have no read timeout
+     */
+    public KubernetesManager(ApiClient client, ApiClient watchClient) {
+        this(client, watchClient, false);
+    }
+
+    /**
+     * @param client Client for API requests
+     * @param watchClient Client for watches. It must have no read timeout
+     * @param electLeader Only reconcile while this proxy holds the leader lease
+     */
+    public KubernetesManager(ApiClient client, ApiClient watchClient, boolean electLeader) {
+        leaderElection = electLeader ? new LeaderElection(NAMESPACE, client) : null;
+        if (leaderElection != null) {
+            leaderElection.start();
+        }
+
+        coreV1Api = new CoreV1Api(client);
+        batchV1Api = new BatchV1Api(client);
+        rightSizer = new RightSizer(NAMESPACE, client);
+        cache = new ClusterCache(NAMESPACE, watchClient);
+        cache.start();
+        capacity = new ClusterCapacity(client, watchClient, cache);
+        capacity.start();
+
+        Metrics metrics = Metrics.getInstance();
+        for (String stage : List.of("pre-gen", "ready", "game", "finished", "wiping", "recycled")) {
+            metrics.gauge("beans_worlds", "World PVCs by stage", () -> cache.getClaims(stage).size(), "stage", stage);
+        }
+        metrics.gauge("beans_worlds_max", "Cap on world PVCs in every stage", () -> MAX_WORLDS);
+        metrics.gauge("beans_pre_gen_jobs", "Pre-gen jobs running", () -> cache.getJobs("beans-pre-gen").size());
+        metrics.gauge("beans_pre_gen_paused", "1 while pre-gen and the standby pools leave room for created games", () -> preGenPaused ? 1 : 0);
+        metrics.gauge("beans_world_templates_ready", "World templates archived and ready to clone", () -> cache.getJobs("beans-template").stream()
+                .filter(KubernetesManager::isSucceeded).count());
+        for (GameType type : GameType.values()) {
+            metrics.gauge("beans_standby_games", "Standby games by type", () -> getStandbyNum(cache.getJobs("beans-game"), type), "type", type.string());
+        }
+        metrics.gauge("beans_games", "Games with a game ID, started or starting", () -> cache.getJobs("beans-game").stream()
+                .filter((job) -> ClusterCache.getLabel(job, "game-id") != null).count());
+        metrics.gauge("beans_game_ids_allocated", "Game IDs in use", () -> idAllocator.getAllocated());
+        metrics.gauge("beans_game_ids_capacity", "Size of the game ID space", () -> idAllocator.getCapacity());
+    }
+
+    public void shutdown() {
+        if (leaderElection != null) {
+            leaderElection.stop();
+        }
+        capacity.stop();
+        cache.stop();
+        mutationExecutor.shutdown();
+    }
+
+    /**
+     * @return true once the cluster cache has loaded the current state of the namespace
+     */
+    public boolean hasSynced() {
+        return cache.hasSynced();
+    }
+
+    private void ensureSynced() throws GameServerException {
+        if (!cache.hasSynced()) {
+            throw new GameServerException("Waiting for the cluster cache to sync");
+        }
+    }
+
 
     /**
      * This function is intended to be run on a schedule. E.g. Ran every 5 seconds
+     * Every decision is made from one snapshot of the cluster, then the resulting changes are applied in parallel.
+     * With several proxies only the leader changes the cluster
      * @throws GameServerException
      */
     public void tick() throws GameServerException {
+        ensureSynced();
+        ClusterSnapshot snapshot = cache.snapshot();
+        idAllocator.reconcile(getGameIds(snapshot.getJobs("beans-game")));
+        // every proxy samples, as every proxy creates games from the profiles
+        rightSizer.tick(snapshot.getPods("beans-game"));
+        capacity.tick();
+        if (isLeader()) {
+            apply(reconcile(snapshot));
+        }
+    }
+
+    /**
+     * @return true if this proxy runs the reconciler
+     */
+    public boolean isLeader() {
+        return leaderElection == null || leaderElection.isLeader();
+    }
+
+    private static List<String> getGameIds(List<V1Job> gameJobs) {
+        List<String> ids = new ArrayList<>();
+        for (V1Job gameJob : gameJobs) {
+            String id = ClusterCache.getLabel(gameJob, "game-id");
+            if (id != null) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Decide what needs to change in the cluster
+     * @param snapshot
+     * @return Independent changes. Each can be applied in any order
+     */
+    private List<Mutation> reconcile(ClusterSnapshot snapshot) {
+        List<Mutation> mutations = new ArrayList<>();
+
+        // update PVC stages and clean up old jobs
+        // for all pre-gen jobs
+        List<V1Job> preGenJobs = snapshot.getJobs("beans-pre-gen");
+        int finishedPreGen = 0;
+        for (V1Job preGenJob : preGenJobs) {
+            // if job finished
+            if (isSucceeded(preGenJob)) {
+                finishedPreGen++;
+                // Update claim stage and delete job
+                mutations.add(() -> {
+                    setClaimStage(getClaimName(preGenJob), "ready");
+                    deleteJob(preGenJob);
+                    V1JobStatus status = preGenJob.getStatus();
+                    if (status.getStartTime() != null && status.getCompletionTime() != null) {
+                        preGenController.recordGeneration(Duration.between(status.getStartTime(), status.getCompletionTime()));
+                    }
+                });
+            }
+        }
+
+        // for all game jobs
+        for (V1Job gameJob : snapshot.getJobs("beans-game")) {
+            // if job finished
+            if (isSucceeded(gameJob)) {
+                mutations.add(() -> finishGameJob(gameJob));
+            } else if (ClusterCache.getLabel(gameJob, "game-id") != null) {
+                // a claimed standby game's pod that was replaced. The new pod comes from the job's template, which
+                // still says standby, as a job's template can't be changed
+                for (V1Pod pod : snapshot.getJobPods(gameJob.getMetadata().getName())) {
+                    if (ClusterCache.getLabel(pod, "game-id") == null) {
+                        mutations.add(() -> relabelReplacedPod(pod, gameJob));
+                    }
+                }
+            }
+        }
+
+        reconcileRecycling(snapshot, mutations);
+
+        if (System.nanoTime() - lastIdReservationSweep >= ID_RESERVATION_SWEEP_INTERVAL.toNanos()) {
+            lastIdReservationSweep = System.nanoTime();
+            Set<String> gameIds = new HashSet<>(getGameIds(snapshot.getJobs("beans-game")));
+            mutations.add(() -> sweepIdReservations(gameIds));
+        }
+
+        // create new pre generated world if needed. The pool is sized from recent demand
+        preGenController.update();
+        // games come first. Nothing new is started while games are waiting for room, or when it would leave no room
+        // for the largest game
+        preGenPaused = queuedGames > 0 || !capacity.fits(getPreGenRequests().plus(getLargestGameRequests()));
+        int slots = preGenPaused ? 0 : preGenController.getSimultaneousJobs() - (preGenJobs.size() - finishedPreGen);
+        // templates go first, as every later world is cloned from them
+        List<String> templates = new ArrayList<>();
+        int templateJobs = reconcileTemplates(snapshot, mutations, slots, templates);
+        List<V1PersistentVolumeClaim> readyClaims = snapshot.getClaims("ready");
+        int current = preGenJobs.size() - finishedPreGen + templateJobs;
+        int done = readyClaims.size() + finishedPreGen;
+        int needed = preGenController.getTargetWorlds() - done - current;
+        int max = preGenController.getSimultaneousJobs() - current;
+        // recycled worlds, then new PVCs up to the cap
+        int available = snapshot.getClaims("recycled").size() + Math.max(0, MAX_WORLDS - snapshot.getClaims().size());
+        int toCreate = preGenPaused ? 0 : Math.min(available, Math.min(max, needed));
+
+        // worlds of this pass are spread over the nodes here, as the mutations run at once
+        Iterator<PreGenTarget> targets = planPreGenTargets(snapshot, toCreate).iterator();
+        for (int i = 0; i < toCreate; i++) {
+            // each template has its own seed, so rotating through them varies the worlds
+            String template = templates.isEmpty() ? null : templates.get(Math.floorMod(templateCursor++, templates.size()));
+            PreGenTarget target = targets.next();
+            mutations.add(() -> createPreGenWorld(template, target));
+        }
+
+        // keep a pool of started games for each game type. Each new standby game takes a different ready world, on the
+        // least loaded nodes first
+        List<V1PersistentVolumeClaim> standbyClaims = new ArrayList<>(readyClaims);
+        sortByLoad(standbyClaims);
+        Iterator<V1PersistentVolumeClaim> unusedClaims = standbyClaims.iterator();
+        List<V1Job> gameJobs = snapshot.getJobs("beans-game");
+        for (GameType type : GameType.values()) {
+            int standbyNeeded = preGenPaused ? 0 : getStandbyPoolSize(type) - getStandbyNum(gameJobs, type);
+            for (int i = 0; i < standbyNeeded; i++) {
+                String readyClaim = unusedClaims.hasNext() ? unusedClaims.next().getMetadata().getName() : null;
+                mutations.add(() -> {
+                    // a create may take the world between the snapshot and now
+                    boolean reserved = readyClaim != null && compareAndSetClaimStage(readyClaim, "ready", "game");
+                    String claimName = reserved ? readyClaim : createClaim("game");
+                    preGenController.recordClaim(reserved);
+                    createGameJob(type, claimName, null, null);
+                });
+            }
+        }
+
+        return mutations;
+    }
+
+    /**
+     * Keep K8S_WORLD_TEMPLATES template jobs, generating or succeeded. Pods of succeeded ones are deleted to free
+     * their generated world. Failed ones are deleted, so they are started again
+     * @param snapshot
+     * @param mutations
+     * @param slots Template jobs that may run at once
+     * @param ready Filled with the archive names of the ready templates
+     * @return Template jobs running, including ones started now
+     */
+    private int reconcileTemplates(ClusterSnapshot snapshot, List<Mutation> mutations, int slots, List<String> ready) {
+        Set<Integer> present = new HashSet<>();
+        int running = 0;
+        for (V1Job templateJob : snapshot.getJobs("beans-template")) {
+            int index = getTemplateIndex(templateJob);
+            List<V1Pod> pods = snapshot.getJobPods(templateJob.getMetadata().getName());
+            if (isFailed(templateJob) || index < 0 || index >= WORLD_TEMPLATES) {
+                mutations.add(() -> deleteJob(templateJob));
+            } else if (isSucceeded(templateJob)) {
+                if (present.add(index)) {
+                    ready.add(getTemplateFile(index));
+                }
+                if (!pods.isEmpty()) {
+                    mutations.add(() -> deletePods(pods));
+                }
+            } else {
+                present.add(index);
+                running++;
+            }
+        }
+        Collections.sort(ready);
+
+        for (int index = 0; index < WORLD_TEMPLATES && running < slots; index++) {
+            if (!present.contains(index)) {
+                running++;
+                int templateIndex = index;
+                mutations.add(() -> createTemplateJob(templateIndex));
+            }
+        }
+        return running;
+    }
+
+    private static int getTemplateIndex(V1Job templateJob) {
+        try {
+            return Integer.parseInt(ClusterCache.getLabel(templateJob, "template-index"));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String getTemplateFile(int index) {
+        return "template-" + index + ".tar.zst";
+    }
+
+    /**
+     * Wipe finished worlds once their retention time is up, so pre-gen can reuse them. At the cap finished worlds
+     * are wiped straight away, as nothing else can free room for new worlds. A world is only wiped once no pod mounts
+     * it, so not while its game pod is still terminating
+     * @param snapshot
+     * @param mutations
+     */
+    private void reconcileRecycling(ClusterSnapshot snapshot, List<Mutation> mutations) {
+        int wiping = 0;
+        Set<String> wipingClaims = new HashSet<>();
+        for (V1Job wipeJob : snapshot.getJobs("beans-wipe")) {
+            String claimName = getClaimName(wipeJob);
+            List<V1Pod> pods = snapshot.getJobPods(wipeJob.getMetadata().getName());
+            wipingClaims.add(claimName);
+            if (isSucceeded(wipeJob)) {
+                mutations.add(() -> {
+                    setClaimStage(claimName, "recycled");
+                    deleteJob(wipeJob);
+                    recordReclaimedBytes(pods);
+                });
+            } else if (isFailed(wipeJob)) {
+                // a world that can't be wiped isn't reused
+                mutations.add(() -> {
+                    deleteJob(wipeJob);
+                    deleteClaim(claimName);
+                });
+            } else {
+                wiping++;
+            }
+        }
+
+        // claims whose wipe job failed to be created
+        for (V1PersistentVolumeClaim claim : snapshot.getClaims("wiping")) {
+            String claimName = claim.getMetadata().getName();
+            if (!wipingClaims.contains(claimName) && wiping < MAX_WIPE_JOBS) {
+                wiping++;
+                mutations.add(() -> createWipeJob(claimName));
+            }
+        }
+
+        boolean atCap = snapshot.getClaims().size() >= MAX_WORLDS;
+        long now = System.currentTimeMillis();
+        List<V1PersistentVolumeClaim> finished = new ArrayList<>(snapshot.getClaims("finished"));
+        finished.sort(Comparator.comparingLong(KubernetesManager::getGameFinishTime));
+        for (V1PersistentVolumeClaim claim : finished) {
+            // oldest first, so no later claim is due either
+            if (wiping >= MAX_WIPE_JOBS || (!atCap && now - getGameFinishTime(claim) < WORLD_RETENTION.toMillis())) {
+                break;
+            }
+            String claimName = claim.getMetadata().getName();
+            // the snapshot hides pods being deleted, so ask the cache
+            if (cache.isClaimMounted(claimName)) {
+                continue;
+            }
+            wiping++;
+            mutations.add(() -> {
+                if (compareAndSetClaimStage(claimName, "finished", "wiping")) {
+                    createWipeJob(claimName);
+                }
+            });
+        }
+    }
+
+    /**
+     * @param claim
+     * @return When the claim's game finished, in epoch millis. 0 if unknown
+     */
+    private static long getGameFinishTime(V1PersistentVolumeClaim claim) {
+        String time = ClusterCache.getLabel(claim, "game-finish-time");
+        try {
+            return time == null ? 0 : Long.parseLong(time);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Count the bytes a wipe job freed. It leaves the size of the old world in KiB as its termination message
+     * @param pods The wipe job's pods
+     */
+    private static void recordReclaimedBytes(List<V1Pod> pods) {
+        for (V1Pod pod : pods) {
+            if (pod.getStatus() == null || pod.getStatus().getContainerStatuses() == null) {
+                continue;
+            }
+            for (V1ContainerStatus status : pod.getStatus().getContainerStatuses()) {
+                V1ContainerStateTerminated terminated = status.getState() == null ? null : status.getState().getTerminated();
+                if (terminated == null || terminated.getExitCode() != 0 || terminated.getMessage() == null) {
+                    continue;
+                }
+                try {
+                    long kibibytes = Long.parseLong(terminated.getMessage().trim());
+                    Metrics.getInstance().counter("beans_world_reclaimed_bytes_total", "Bytes of finished worlds wiped for reuse").inc(kibibytes * 1024);
+                } catch (NumberFormatException e) {
+                    // nothing to count
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply changes in parallel. Waits for all of them, even if some fail
+     * @param mutations
+     * @throws GameServerException The first failure. Later failures are suppressed exceptions of it
+     */
+    private void apply(List<Mutation> mutations) throws GameServerException {
+        List<Future<?>> futures = new ArrayList<>();
+        for (Mutation mutation : mutations) {
+            futures.add(mutationExecutor.submit(() -> {
+                mutation.apply();
+                return null;
+            }));
+        }
+
+        GameServerException error = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                GameServerException cause = e.getCause() instanceof GameServerException gameServerException
+                        ? gameServerException
+                        : new GameServerException(e.getCause() instanceof Exception exception ? exception : e);
+                if (error == null) {
+                    error = cause;
+                } else {
+                    error.addSuppressed(cause);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GameServerException(e);
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private static boolean isSucceeded(V1Job job) {
+        return job.getStatus() != null && job.getStatus().getSucceeded() != null && job.getStatus().getSucceeded() == 1;
+    }
+
+    private static boolean isFailed(V1Job job) {
+        if (job.getStatus() == null || job.getStatus().getConditions() == null) {
+            return false;
+        }
+        return job.getStatus().getConditions().stream()
+                .anyMatch((condition) -> condition.getType().equals("Failed") && condition.getStatus().equals("True"));
+    }
+
+    private static String getClaimName(V1Job job) {
+        return job.getSpec().getTemplate().getSpec().getVolumes().get(0).getPersistentVolumeClaim().getClaimName();
+    }
+
+    /**
+     * Delete a game's job and mark its world finished. Players should be moved off first. See Drainer
+     * @param id
+     * @throws GameServerException
+     */
+    public void deleteGame(String id) throws GameServerException {
+        ensureSynced();
+        try {
+            for (V1Job gameJob : cache.getGameJobs(id)) {
+                if (gameJob.getMetadata().getDeletionTimestamp() != null) {
+                    continue;
+                }
+                finishGameJob(gameJob);
+            }
+        } catch (ApiException e) {
+            throw new GameServerException(e);
+        }
+        idAllocator.release(id);
+    }
+
+    /**
+     * Used for deleted games and games that ended. Three API calls, whatever the number of pods
+     * @param gameJob
+     */
+    private void finishGameJob(V1Job gameJob) throws GameServerException, ApiException {
+        finishClaim(getClaimName(gameJob));
+        deleteJob(gameJob);
+        String id = ClusterCache.getLabel(gameJob, "game-id");
+        if (id != null) {
+            deleteIdReservation(id);
+        }
+    }
+
+    /**
+     * Deletes a job. Its pods are deleted by the garbage collector, as set by K8S_DELETE_PROPAGATION
+     * @param job
+     * @throws ApiException
+     */
+    private void deleteJob(V1Job job) throws ApiException {
+        String jobName = job.getMetadata().getName();
+        try {
+            api.call("delete", "jobs", () -> batchV1Api.deleteNamespacedJob(jobName, NAMESPACE, null, null, null, null, DELETE_PROPAGATION, null));
+        } catch (ApiException e) {
+            // deleted already, e.g. by a delete that raced a tick
+            if (e.getCode() != 404) {
+                throw e;
+            }
+        }
+        cache.remove(job);
+    }
+
+    private void deletePods(List<V1Pod> pods) throws ApiException {
+        for (V1Pod pod : pods) {
+            api.call("delete", "pods", () -> coreV1Api.deleteNamespacedPod(pod.getMetadata().getName(), NAMESPACE, null, null, null, null, null, null));
+            cache.remove(pod);
+        }
+    }
+
+    /**
+     * Gets the number of pre-generated worlds available for games
+     * @return The number of worlds that have been pre-generated but not played on yet
+     * @throws GameServerException
+     */
+    public int getCompletedGenerationNum() throws GameServerException {
+        ensureSynced();
+        return cache.getClaims("ready").size();
+    }
+
+    /**
+     * Move a ready claim to the game stage. Safe to call concurrently, from any number of proxies
+     * Claims on the least loaded nodes are tried first. Candidates on equally loaded nodes are tried in random order
+     * so concurrent creates rarely want the same claim. If another create got a claim first the patch fails and the
+     * next candidate is tried
+     * @param type
+     * @param needRoom Skip claims on nodes without room for the game, as its pod would be stuck Pending
+     * @param reservation Room held for the game's pod, steered to the claim's node. Null if none is held
+     * @return Name of the reserved PVC. Null if no claim is ready
+     */
+    private String reserveReadyClaim(GameType type, boolean needRoom, ClusterCapacity.Reservation reservation) throws GameServerException {
+        ClusterCapacity.Resources requests = getGameRequests(type);
+        List<V1PersistentVolumeClaim> candidates = new ArrayList<>(cache.getClaims("ready"));
+        if (needRoom) {
+            candidates.removeIf((claim) -> getClaimNode(claim) != null && !capacity.fitsOn(getClaimNode(claim), requests));
+        }
+        sortByLoad(candidates);
+        for (V1PersistentVolumeClaim candidate : candidates) {
+            if (compareAndSetClaimStage(candidate.getMetadata().getName(), "ready", "game")) {
+                String node = getClaimNode(candidate);
+                if (node != null && reservation != null) {
+                    capacity.pin(reservation, node);
+                }
+                return candidate.getMetadata().getName();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Shuffle, then sort claims by the load of their node. Claims without a node can be used on any node, so go first
+     * @param claims
+     */
+    private void sortByLoad(List<V1PersistentVolumeClaim> claims) {
+        Map<String, Double> loads = new HashMap<>();
+        Collections.shuffle(claims, random);
+        claims.sort(Comparator.comparingDouble((claim) -> {
+            String node = getClaimNode(claim);
+            return node == null ? 0 : loads.computeIfAbsent(node, capacity::getLoad);
+        }));
+    }
+
+    /**
+     * @param claim
+     * @return The node a node-local PVC is bound to. Null if it hasn't been used yet, or its storage isn't node-local
+     */
+    private static String getClaimNode(V1PersistentVolumeClaim claim) {
+        Map<String, String> annotations = claim.getMetadata().getAnnotations();
+        return annotations == null ? null : annotations.get("volume.kubernetes.io/selected-node");
+    }
+
+    /**
+     * K8S_STANDBY_POOL_SIZE sets the pool size of every game type. K8S_STANDBY_POOL_SIZE_[GAME TYPE] overrides it
+     * @return
+     */
+    private static Map<GameType, Integer> getStandbyPoolSizes() {
+        int defaultSize = Env.getInt("K8S_STANDBY_POOL_SIZE", 0);
+        Map<GameType, Integer> sizes = new EnumMap<>(GameType.class);
+        for (GameType type : GameType.values()) {
+            sizes.put(type, Env.getInt("K8S_STANDBY_POOL_SIZE_" + type.name(), defaultSize));
+        }
+        return sizes;
+    }
+
+    private static int getStandbyPoolSize(GameType type) {
+        return STANDBY_POOL_SIZES.get(type);
+    }
+
+    private static int getStandbyNum(List<V1Job> gameJobs, GameType type) {
+        int num = 0;
+        for (V1Job gameJob : gameJobs) {
+            if ("standby".equals(ClusterCache.getLabel(gameJob, "pool")) && type.string().equals(ClusterCache.getLabel(gameJob, "game-type"))) {
+                num++;
+            }
+        }
+        return num;
+    }
+
+    /**
+     * Take a pre-generated world if one is ready on a node with room, otherwise create an empty one
+     * @param type
+     * @param reservation Room held for the game's pod. Null if none is held
+     * @return Name of the PVC, now in the game stage
+     */
+    private String reserveClaim(GameType type, ClusterCapacity.Reservation reservation) throws GameServerException {
+        String claimName = reserveReadyClaim(type, true, reservation);
+        preGenController.recordClaim(claimName != null);
+        if (claimName == null) {
+            try {
+                claimName = createClaim("game");
+            } catch (GameServerException e) {
+                // out of PVCs. A world on a busy node is better than no game
+                claimName = reserveReadyClaim(type, false, reservation);
+                if (claimName == null) {
+                    throw e;
+                }
+            }
+        }
+        return claimName;
+    }
+
+    /**
+     * Check there's room for a game before creating it. Each ready standby game admits one creation until it's
+     * claimed. Otherwise room for a new pod is reserved until the pod exists
+     * @param type
+     * @return Room for a game of this type, to be passed to createGame. Null if there's none now
+     */
+    public Admission tryAdmit(GameType type) {
+        if (!cache.hasSynced()) {
+            return new Admission(type, null, false);
+        }
+        int standbyGames = 0;
+        for (V1Pod pod : cache.getPods("beans-game")) {
+            if ("standby".equals(ClusterCache.getLabel(pod, "pool"))
+                    && type.string().equals(ClusterCache.getLabel(pod, "game-type"))
+                    && getGameAddress(pod) != null) {
+                standbyGames++;
+            }
+        }
+        synchronized (standbyAdmissions) {
+            if (standbyAdmissions.getOrDefault(type, 0) < standbyGames) {
+                standbyAdmissions.merge(type, 1, Integer::sum);
+                return new Admission(type, null, true);
+            }
+        }
+        ClusterCapacity.Reservation reservation = capacity.tryReserve(getGameRequests(type));
+        return reservation == null ? null : new Admission(type, reservation, false);
+    }
+
+    /**
+     * @param queuedGames Creations waiting for room. Pre-gen and the standby pools are paused while there are any
+     */
+    public void setQueuedGames(int queuedGames) {
+        this.queuedGames = queuedGames;
+    }
+
+    /**
+     * @param type
+     * @return Requests of a game pod of this type, from its profile and the other containers of the template
+     */
+    private static ClusterCapacity.Resources getGameRequests(GameType type) {
+        List<V1Container> containers = GAME_JOB.getSpec().getTemplate().getSpec().getContainers();
+        ClusterCapacity.Resources requests = ClusterCapacity.Resources.of(type.getProfile().requests());
+        for (V1Container container : containers.subList(1, containers.size())) {
+            requests = requests.plus(ClusterCapacity.Resources.of(container.getResources().getRequests()));
+        }
+        return requests;
+    }
+
+    private static ClusterCapacity.Resources getLargestGameRequests() {
+        double cpu = 0;
+        double memory = 0;
+        for (GameType type : GameType.values()) {
+            ClusterCapacity.Resources requests = getGameRequests(type);
+            cpu = Math.max(cpu, requests.cpu());
+            memory = Math.max(memory, requests.memory());
+        }
+        return new ClusterCapacity.Resources(cpu, memory);
+    }
+
+    private static ClusterCapacity.Resources getPreGenRequests() {
+        // generating a world from scratch is the largest pre-gen job
+        return ClusterCapacity.getRequests(PRE_GEN_JOB.getSpec().getTemplate().getSpec());
+    }
+
+    /**
+     * Start a game, on a standby game if one of this type is ready
+     * @param type
+     * @param creator Username of the player creating the game
+     * @return Game ID
+     * @throws GameServerException
+     */
+    public String createGame(GameType type, String creator) throws GameServerException {
+        return createGame(type, creator, null);
+    }
+
+    /**
+     * Start a game, on a standby game if one of this type is ready
+     * @param type
+     * @param creator Username of the player creating the game
+     * @param admission Room for the game, from tryAdmit. Null if it wasn't admitted
+     * @return Game ID
+     * @throws GameServerException
+     */
+    public String createGame(GameType type, String creator, Admission admission) throws GameServerException {
         try {
-            // update PVC stages and clean up old jobs
-            // for all pre-gen jobs
-            V1JobList preGenJobs = batchV1Api.listNamespacedJob(NAMESPACE, null, null, null, null, "purpose=beans-pre-gen", null, null, null, null, null);
-            for (V1Job preGenJob : preGenJobs.getItems()) {
-                // if job finished
-                if (preGenJob.getStatus().getSucceeded() != null && preGenJob.getStatus().getSucceeded() == 1) {
-                    // Update claim stage and delete job
-                    String claimName = preGenJob.getSpec().getTemplate().getSpec().getVolumes().get(0).getPersistentVolumeClaim().getClaimName();
-                    setClaimStage(claimName, "ready");
-                    batchV1Api.deleteNamespacedJob(preGenJob.getMetadata().getName(), NAMESPACE, null, null, null, null, null, null);
-
-                    // Delete job's pods
-                    for (V1Pod gamePod : coreV1Api.listNamespacedPod(NAMESPACE, null, null, null, null, "job-name=" + preGenJob.getMetadata().getName(), null, null, null, null, null).getItems()) {
-                        coreV1Api.deleteNamespacedPod(gamePod.getMetadata().getName(), NAMESPACE, null, null, null, null, null, null);
+            ensureSynced();
+            String id = reserveGameId();
+            try {
+                long start = System.nanoTime();
+                if (claimStandbyGame(type, id, creator) != null) {
+                    startPhase("standby_claim").observeSince(start);
+                    if (admission != null) {
+                        admission.handOver(null);
                     }
+                    return id;
                 }
+
+                String claimName = reserveClaim(type, admission == null ? null : admission.reservation);
+                startPhase("claim_reservation").observeSince(start);
+
+                start = System.nanoTime();
+                V1Job job = createGameJob(type, claimName, id, creator);
+                startPhase("job_creation").observeSince(start);
+                if (admission != null) {
+                    admission.handOver(job.getMetadata().getName());
+                }
+                return id;
+            } catch (GameServerException | RuntimeException e) {
+                try {
+                    releaseGameId(id);
+                } catch (ApiException releaseError) {
+                    e.addSuppressed(releaseError);
+                }
+                throw e;
+            }
+        } finally {
+            if (admission != null) {
+                admission.release();
+            }
+        }
+    }
+
+    /**
+     * Allocate a game ID and reserve it in the cluster. The allocator only knows the games this proxy's cache has
+     * seen, so two proxies can allocate the same ID at once. Each ID is reserved by creating a config map named after
+     * it, which the apiserver lets only one of them do. The other gets a conflict and moves on to the next ID
+     * @return Game ID, reserved
+     * @throws GameServerException If every ID is taken
+     */
+    private String reserveGameId() throws GameServerException {
+        while (true) {
+            String id = idAllocator.allocate();
+            V1ConfigMap reservation = new V1ConfigMapBuilder()
+                    .withNewMetadata()
+                        .withName(getIdReservationName(id))
+                        .addToLabels("purpose", "beans-game-id")
+                        .addToLabels("game-id", id)
+                    .endMetadata()
+                    .build();
+            try {
+                api.call("create", "configmaps", () -> coreV1Api.createNamespacedConfigMap(NAMESPACE, reservation, null, null, null, null));
+                return id;
+            } catch (ApiException e) {
+                if (e.getCode() != 409) {
+                    idAllocator.release(id);
+                    throw new GameServerException(e);
+                }
+                // another proxy's game, which this proxy's cache hasn't seen yet
+                idAllocator.skip(id);
+                Metrics.getInstance().counter("beans_game_id_collisions_total", "Game IDs found reserved by another proxy after being allocated").inc();
+            }
+        }
+    }
+
+    /**
+     * Give up a game ID, so any proxy can allocate it again
+     * @param id
+     */
+    private void releaseGameId(String id) throws ApiException {
+        idAllocator.release(id);
+        deleteIdReservation(id);
+    }
+
+    private void deleteIdReservation(String id) throws ApiException {
+        try {
+            api.call("delete", "configmaps", () -> coreV1Api.deleteNamespacedConfigMap(getIdReservationName(id), NAMESPACE, null, null, null, null, null, null));
+        } catch (ApiException e) {
+            if (e.getCode() != 404) {
+                throw e;
+            }
+        }
+    }
+
+    private static String getIdReservationName(String id) {
+        return "beans-game-id-" + id;
+    }
+
+    /**
+     * Delete reservations of IDs without a game, left by proxies that stopped in the middle of a create
+     * @param gameIds IDs of every game, from the reconcile snapshot. Newer reservations are kept, as their game may
+     * have been created since
+     */
+    private void sweepIdReservations(Set<String> gameIds) throws ApiException {
+        V1ConfigMapList reservations = api.call("list", "configmaps", () -> coreV1Api.listNamespacedConfigMap(NAMESPACE, null, null, null, null,
+                "purpose=beans-game-id", null, null, null, null, null));
+        OffsetDateTime cutoff = OffsetDateTime.now().minus(ID_RESERVATION_GRACE);
+        for (V1ConfigMap reservation : reservations.getItems()) {
+            String id = ClusterCache.getLabel(reservation, "game-id");
+            OffsetDateTime created = reservation.getMetadata().getCreationTimestamp();
+            if (id != null && !gameIds.contains(id) && created != null && created.isBefore(cutoff)) {
+                deleteIdReservation(id);
+            }
+        }
+    }
+
+    private static Metrics.Histogram startPhase(String phase) {
+        return Metrics.getInstance().histogram("beans_game_start_phase_seconds", "Time spent in each phase of starting a game",
+                Metrics.LATENCY_BUCKETS, "phase", phase);
+    }
+
+    /**
+     * Record how long the phases of a game pod's startup took, from the timestamps in its status
+     * @param pod A pod that just became ready
+     */
+    private static void recordStartupPhases(V1Pod pod) {
+        V1PodStatus status = pod.getStatus();
+        observePhase("scheduling", pod.getMetadata().getCreationTimestamp(), getConditionTime(pod, "PodScheduled"));
+
+        if (status.getInitContainerStatuses() != null && !status.getInitContainerStatuses().isEmpty()) {
+            V1ContainerStateTerminated download = status.getInitContainerStatuses().get(0).getState().getTerminated();
+            if (download != null) {
+                observePhase("plugin_download", download.getStartedAt(), download.getFinishedAt());
             }
+        }
 
-            // for all game jobs
-            V1JobList gameJobs = batchV1Api.listNamespacedJob(NAMESPACE, null, null, null, null, "purpose=beans-game", null, null, null, null, null);
-            for (V1Job gameJob : gameJobs.getItems()) {
-                // if job finished
-                if (gameJob.getStatus().getSucceeded() != null && gameJob.getStatus().getSucceeded() == 1) {
-                    deleteGame(gameJob.getMetadata().getLabels().get("game-id"));
-                }
+        if (status.getContainerStatuses() != null && !status.getContainerStatuses().isEmpty()) {
+            V1ContainerStateRunning running = status.getContainerStatuses().get(0).getState().getRunning();
+            if (running != null) {
+                observePhase("readiness", running.getStartedAt(), getConditionTime(pod, "Ready"));
             }
+        }
+    }
 
-            // create new pre generated world if needed
-            int current = getGeneratingNum();
-            int done = getCompletedGenerationNum();
-            int needed = PRE_GEN_NUM - done - current;
-            int max = PRE_GEN_MAX_SIMULTANEOUS_JOBS - current;
-            int toCreate = Math.min(max, needed);
+    private static void observePhase(String phase, OffsetDateTime start, OffsetDateTime end) {
+        if (start != null && end != null) {
+            startPhase(phase).observe(Duration.between(start, end).toMillis() / 1000.0);
+        }
+    }
 
-            for (int i = 0; i < toCreate; i++) {
-                createPreGenWorld();
+    private static OffsetDateTime getConditionTime(V1Pod pod, String type) {
+        if (pod.getStatus().getConditions() == null) {
+            return null;
+        }
+        for (V1PodCondition condition : pod.getStatus().getConditions()) {
+            if (condition.getType().equals(type) && condition.getStatus().equals("True")) {
+                return condition.getLastTransitionTime();
             }
-        } catch (ApiException e) {
-            throw new GameServerException(e);
         }
+        return null;
     }
 
-    public void deleteGame(String id) throws GameServerException {
-        try {
-            for (V1Job gameJob : batchV1Api.listNamespacedJob(NAMESPACE, null, null, null, null, "purpose=beans-game,game-id=" + id, null, null, null, null, null).getItems()) {
-                String claimName = gameJob.getSpec().getTemplate().getSpec().getVolumes().get(0).getPersistentVolumeClaim().getClaimName();
-                setClaimStage(claimName, "finished");
-                setClaimGameFinishTimeToNow(claimName);
-                batchV1Api.deleteNamespacedJob(gameJob.getMetadata().getName(), NAMESPACE, null, null, null, null, null, null);
-
-                // Delete job's pods
-                for (V1Pod gamePod : coreV1Api.listNamespacedPod(NAMESPACE, null, null, null, null, "job-name=" + gameJob.getMetadata().getName(), null, null, null, null, null).getItems()) {
-                    coreV1Api.deleteNamespacedPod(gamePod.getMetadata().getName(), NAMESPACE, null, null, null, null, null, null);
+    /**
+     * Assign a game ID to a started standby game of this type
+     * @param type
+     * @param id
+     * @param creator
+     * @return The claimed pod. Null if no standby game of this type is ready
+     */
+    private V1Pod claimStandbyGame(GameType type, String id, String creator) throws GameServerException {
+        // The test op makes the patch fail if another create or proxy claimed the pod first
+        V1Patch patch = jsonPatch(
+                patchOp("test", "/metadata/labels/pool", "standby"),
+                patchOp("replace", "/metadata/labels/pool", "claimed"),
+                patchOp("add", "/metadata/labels/game-id", id),
+                patchOp("add", "/metadata/annotations/creator", creator),
+                patchOp("add", "/metadata/annotations/start-time", Instant.now().toString()));
+
+        for (V1Pod pod : cache.getPods("beans-game")) {
+            if (!"standby".equals(ClusterCache.getLabel(pod, "pool"))
+                    || !type.string().equals(ClusterCache.getLabel(pod, "game-type"))
+                    || getGameAddress(pod) == null
+            ) {
+                continue;
+            }
+
+            try {
+                cache.update(api.call("patch", "pods", () -> coreV1Api.patchNamespacedPod(pod.getMetadata().getName(), NAMESPACE, patch, null, null, null, null, null)));
+            } catch (ApiException e) {
+                if (isLostRace(e)) {
+                    continue; // taken or deleted in the meantime
                 }
+                throw new GameServerException(e);
             }
-        } catch (ApiException e) {
-            throw new GameServerException(e);
-        }
-    }
 
-    private String getNewGameId() throws GameServerException {
-        Set<String> gameIds = getGames().keySet();
-        int offset = random.nextInt(100);
-        for (int i = 0; i < 100; i++) {
-            int id = (i + offset) % 100;
-            String strId = String.format("%02d", id);
-            if (!gameIds.contains(strId)) {
-                return strId;
+            try {
+                String jobName = ClusterCache.getLabel(pod, "job-name");
+                cache.update(api.call("patch", "jobs", () -> batchV1Api.patchNamespacedJob(jobName, NAMESPACE, patch, null, null, null, null, null)));
+            } catch (ApiException e) {
+                // the pod and its job must agree, or reconcile counts the pod's job as standby while it's a game
+                GameServerException error = new GameServerException(e);
+                try {
+                    unclaimStandbyPod(pod.getMetadata().getName(), id);
+                } catch (ApiException rollbackError) {
+                    error.addSuppressed(rollbackError);
+                }
+                throw error;
             }
+            return pod;
         }
-        throw new GameServerException("Out of games IDs. The number of games exceeds 100");
+        return null;
     }
 
     /**
-     * Gets the number of pre-generated worlds available for games
-     * @return The number of worlds that have been pre-generated but not played on yet
-     * @throws GameServerException
+     * Give a replacement pod of a claimed standby game the labels and annotations of the claim, copied from its job
+     * @param pod
+     * @param job
      */
-    public int getCompletedGenerationNum() throws GameServerException {
+    private void relabelReplacedPod(V1Pod pod, V1Job job) throws GameServerException {
+        Map<String, String> annotations = job.getMetadata().getAnnotations() == null ? Map.of() : job.getMetadata().getAnnotations();
+        V1Patch patch = jsonPatch(
+                patchOp("test", "/metadata/labels/pool", "standby"),
+                patchOp("replace", "/metadata/labels/pool", "claimed"),
+                patchOp("add", "/metadata/labels/game-id", ClusterCache.getLabel(job, "game-id")),
+                patchOp("add", "/metadata/annotations/creator", annotations.getOrDefault("creator", "")),
+                patchOp("add", "/metadata/annotations/start-time", annotations.getOrDefault("start-time", "")));
         try {
-            V1PersistentVolumeClaimList readyWorldList = coreV1Api.listNamespacedPersistentVolumeClaim(NAMESPACE, null, null, null, null, "purpose=beans-world,stage=ready", null, null, null, null, null);
-            return readyWorldList.getItems().size();
+            cache.update(api.call("patch", "pods", () -> coreV1Api.patchNamespacedPod(pod.getMetadata().getName(), NAMESPACE, patch, null, null, null, null, null)));
         } catch (ApiException e) {
-            throw new GameServerException(e);
+            if (!isLostRace(e)) {
+                throw new GameServerException(e);
+            }
         }
     }
 
-    private String getAnyReadyClaim() throws GameServerException {
-        try {
-            V1PersistentVolumeClaimList readyWorldList = coreV1Api.listNamespacedPersistentVolumeClaim(NAMESPACE, null, null, null, null, "purpose=beans-world,stage=ready", null, null, null, null, null);
-            return readyWorldList.getItems().size() == 0 ? null : readyWorldList.getItems().get(0).getMetadata().getName();
-        } catch (ApiException e) {
-            throw new GameServerException(e);
-        }
+    /**
+     * Put a pod claimed by claimStandbyGame back in the standby pool, as it was before the claim
+     * @param podName
+     * @param id Game ID it was claimed with
+     */
+    private void unclaimStandbyPod(String podName, String id) throws ApiException {
+        V1Patch patch = jsonPatch(
+                patchOp("test", "/metadata/labels/game-id", id),
+                patchOp("replace", "/metadata/labels/pool", "standby"),
+                patchOp("remove", "/metadata/labels/game-id", null),
+                patchOp("replace", "/metadata/annotations/creator", ""),
+                patchOp("replace", "/metadata/annotations/start-time", ""));
+        cache.update(api.call("patch", "pods", () -> coreV1Api.patchNamespacedPod(podName, NAMESPACE, patch, null, null, null, null, null)));
     }
 
-    private int getGeneratingNum() throws GameServerException {
-        try {
-            V1JobList generatingJobs = batchV1Api.listNamespacedJob(NAMESPACE, null, null, null, null, "purpose=beans-pre-gen", null, null, null, null, null);
-            return generatingJobs.getItems().size();
-        } catch (ApiException e) {
-            throw new GameServerException(e);
-        }
+    /**
+     * @param ops
+     * @return A JSON patch of the ops, serialised so that values are escaped
+     */
+    @SafeVarargs
+    private static V1Patch jsonPatch(Map<String, Object>... ops) {
+        return new V1Patch(GSON.toJson(List.of(ops)));
     }
 
-    public String createGame(String jarUrl) throws GameServerException {
-        String claimName = getAnyReadyClaim();
-        if (claimName == null) {
-            claimName = createClaim("game");
-        } else {
-            setClaimStage(claimName, "game");
+    /**
+     * @param op
+     * @param path
+     * @param value Null for ops without a value, e.g. remove
+     * @return
+     */
+    private static Map<String, Object> patchOp(String op, String path, Object value) {
+        Map<String, Object> patchOp = new LinkedHashMap<>();
+        patchOp.put("op", op);
+        patchOp.put("path", path);
+        if (value != null) {
+            patchOp.put("value", value);
         }
+        return patchOp;
+    }
 
-        String id = getNewGameId();
+    /**
+     * Creates a game job on a world
+     * @param type
+     * @param claimName PVC holding the world
+     * @param id Game ID. Null to create a standby game
+     * @param creator Username of the player creating the game. Null for a standby game
+     * @return The created job
+     */
+    private V1Job createGameJob(GameType type, String claimName, String id, String creator) throws GameServerException {
+        Map<String, String> labels = id == null
+                ? Map.of("game-type", type.string(), "pool", "standby")
+                : Map.of("game-type", type.string(), "game-id", id);
+        // usernames can't always be label values. Standby games get empty values, replaced when claimed
+        Map<String, String> annotations = id == null
+                ? Map.of("creator", "", "start-time", "")
+                : Map.of("creator", creator, "start-time", Instant.now().toString());
 
         V1Job job = new V1JobBuilder()
                 .withNewMetadataLike(GAME_JOB.getMetadata())
-                    .withName("game-" + Long.hashCode(System.currentTimeMillis()))
-                    .addToLabels("game-id", id)
+                    .withName(null)
+                    .withGenerateName("game-")
+                    .addToLabels(labels)
+                    .addToAnnotations(annotations)
                 .endMetadata()
                 .withNewSpecLike(GAME_JOB.getSpec())
                     .editTemplate()
                         .editMetadata()
-                            .addToLabels("game-id", id)
+                            .addToLabels(labels)
+                            .addToAnnotations(annotations)
                         .endMetadata()
                         .editSpec()
                             .withPriorityClassName(GAME_PRIORITY_CLASS)
                             .editInitContainer(0)
-                                .withCommand("wget", jarUrl, GAME_PLUGIN_URL, "-P", "/plugins")
+                                .withCommand(ArtifactCache.getInstance().getDownloadCommand(List.of(type.getJarURL(), GAME_PLUGIN_URL), "/plugins"))
                             .endInitContainer()
                             .editVolume(0)
                                 .editPersistentVolumeClaim()
@@ -226,13 +1213,54 @@ public class KubernetesManager {
                     .endTemplate()
                 .endSpec()
                 .build();
+
+        if (id == null) {
+            setEnv(job, "AUTOSTOP_TIMEOUT_INIT", STANDBY_AUTOSTOP_TIMEOUT_INIT);
+        }
+
+        ResourceProfile profile = type.getProfile();
+        V1ResourceRequirements resources = job.getSpec().getTemplate().getSpec().getContainers().get(0).getResources();
+        profile.requests().forEach(resources::putRequestsItem);
+        profile.limits().forEach(resources::putLimitsItem);
+        setEnv(job, "MEMORY", profile.heap());
+        setEnv(job, "VIEW_DISTANCE", Integer.toString(profile.viewDistance()));
+
+        V1Container register = job.getSpec().getTemplate().getSpec().getContainers().get(1);
+        for (V1EnvVar env : register.getEnv()) {
+            if (env.getName().equals("REGISTRATION_URL")) {
+                env.setValue(REGISTRATION_URL);
+            } else if (env.getName().equals("REGISTRATION_TOKEN")) {
+                env.getValueFrom().getSecretKeyRef().setName(REGISTRATION_SECRET);
+            }
+        }
+
         try {
-            batchV1Api.createNamespacedJob(NAMESPACE, job, null, null, null, null);
+            V1Job created = api.call("create", "jobs", () -> batchV1Api.createNamespacedJob(NAMESPACE, job, null, null, null, null));
+            cache.update(created);
+            return created;
         } catch (ApiException e) {
             throw new GameServerException(e);
         }
+    }
+
+    /**
+     * @return How long a game server with nobody on it runs before it stops itself (AUTOSTOP_TIMEOUT_EST)
+     */
+    public static Duration getAutostopTimeout() {
+        for (V1EnvVar env : GAME_JOB.getSpec().getTemplate().getSpec().getContainers().get(0).getEnv()) {
+            if (env.getName().equals("AUTOSTOP_TIMEOUT_EST")) {
+                return Duration.ofSeconds(Long.parseLong(env.getValue()));
+            }
+        }
+        return Duration.ZERO;
+    }
 
-        return id;
+    private static void setEnv(V1Job job, String name, String value) {
+        for (V1EnvVar env : job.getSpec().getTemplate().getSpec().getContainers().get(0).getEnv()) {
+            if (env.getName().equals(name)) {
+                env.setValue(value);
+            }
+        }
     }
 
     /**
@@ -241,52 +1269,231 @@ public class KubernetesManager {
      * @throws GameServerException
      */
     public Map<String, InetSocketAddress> getGames() throws GameServerException {
-        try {
-            Map<String, InetSocketAddress> games = new HashMap<>();
+        ensureSynced();
+        Map<String, InetSocketAddress> games = new HashMap<>();
 
-            // Get all games
-            V1JobList gameJobs = batchV1Api.listNamespacedJob(NAMESPACE, null, null, null, null, "purpose=beans-game", null, null, null, null, null);
-            for (V1Job gameJob : gameJobs.getItems()) {
-                String gameId = gameJob.getMetadata().getLabels().get("game-id");
+        // Get all games
+        for (V1Job gameJob : cache.getJobs("beans-game")) {
+            String gameId = ClusterCache.getLabel(gameJob, "game-id");
+            if (gameId != null) {
                 games.put(gameId, null);
             }
+        }
 
-            // Get all running games
-            V1PodList gamePods = coreV1Api.listNamespacedPod(NAMESPACE, null, null, null, null, "purpose=beans-game", null, null, null, null, null);
-            for (V1Pod gamePod : gamePods.getItems()) {
-                if (gamePod.getStatus() != null
-                        && gamePod.getStatus().getContainerStatuses() != null
-                        && !gamePod.getStatus().getContainerStatuses().get(0).getReady()
-                ) {
-                    continue;
-                }
-                String gameId = gamePod.getMetadata().getLabels().get("game-id");
-                String podIP = gamePod.getStatus().getPodIP();
+        // Get all running games
+        for (V1Pod gamePod : cache.getPods("beans-game")) {
+            String gameId = ClusterCache.getLabel(gamePod, "game-id");
+            InetSocketAddress address = getGameAddress(gamePod);
+            if (gameId != null && address != null) {
+                games.put(gameId, address);
+            }
+        }
 
-                if (podIP == null) {
-                    continue;
-                }
+        return games;
+    }
 
-                int port = gamePod.getSpec().getContainers().get(0).getPorts().get(0).getContainerPort();
+    /**
+     * Get the address of a game pod
+     * @param gamePod
+     * @return Address of the game server. Null if the pod is not ready
+     */
+    private static InetSocketAddress getGameAddress(V1Pod gamePod) {
+        if (gamePod.getStatus() == null) {
+            return null;
+        }
+        if (gamePod.getStatus().getContainerStatuses() != null
+                && !gamePod.getStatus().getContainerStatuses().get(0).getReady()
+                && !isRegistered(gamePod)
+        ) {
+            return null;
+        }
+        String podIP = gamePod.getStatus().getPodIP();
 
-                games.put(gameId, InetSocketAddress.createUnresolved(podIP, port));
-            }
+        if (podIP == null) {
+            return null;
+        }
 
-            return games;
-        } catch (ApiException e) {
+        int port = gamePod.getSpec().getContainers().get(0).getPorts().get(0).getContainerPort();
+
+        return InetSocketAddress.createUnresolved(podIP, port);
+    }
+
+    /**
+     * @param gamePod
+     * @return true if the game server pushed its readiness since its container last started. A restarted container
+     * has to become ready again
+     */
+    private static boolean isRegistered(V1Pod gamePod) {
+        Map<String, String> annotations = gamePod.getMetadata().getAnnotations();
+        String restarts = annotations == null ? null : annotations.get("registered-restarts");
+        if (restarts == null || gamePod.getStatus().getContainerStatuses() == null) {
+            return false;
+        }
+        V1ContainerStatus server = gamePod.getStatus().getContainerStatuses().get(0);
+        return server.getState() != null && server.getState().getRunning() != null
+                && restarts.equals(Integer.toString(server.getRestartCount()));
+    }
+
+    /**
+     * Mark a game pod ready because its server said so, ahead of the readiness probe. The mark is kept on the pod, so
+     * every proxy's watch sees it, and it stops counting if the server's container restarts
+     * @param podName
+     * @param from Address the request came from. Must be the pod's own IP
+     * @return The game, now ready. Null if the pod is a standby game, which has no game ID yet
+     * @throws GameServerException If the pod isn't a running game pod, or the request didn't come from it
+     */
+    public GameInfo registerReady(String podName, InetAddress from) throws GameServerException {
+        ensureSynced();
+        V1Pod pod = cache.getPod(podName);
+        if (pod == null || !"beans-game".equals(ClusterCache.getLabel(pod, "purpose"))
+                || pod.getStatus() == null || pod.getStatus().getPodIP() == null
+                || pod.getStatus().getContainerStatuses() == null || pod.getStatus().getContainerStatuses().isEmpty()) {
+            throw new GameServerException("No running game pod called " + podName);
+        }
+        try {
+            if (!InetAddress.getByName(pod.getStatus().getPodIP()).equals(from)) {
+                throw new GameServerException("Registration for " + podName + " came from " + from.getHostAddress());
+            }
+        } catch (UnknownHostException e) {
             throw new GameServerException(e);
         }
+
+        if (!isRegistered(pod)) {
+            String restarts = Integer.toString(pod.getStatus().getContainerStatuses().get(0).getRestartCount());
+            V1Patch patch = pod.getMetadata().getAnnotations() == null
+                    ? jsonPatch(patchOp("add", "/metadata/annotations", Map.of("registered-restarts", restarts)))
+                    : jsonPatch(patchOp("add", "/metadata/annotations/registered-restarts", restarts));
+            try {
+                pod = api.call("patch", "pods", () -> coreV1Api.patchNamespacedPod(podName, NAMESPACE, patch, null, null, null, null, null));
+            } catch (ApiException e) {
+                throw new GameServerException(e);
+            }
+            // the watch event for the patch won't look like a change, so phases are recorded here
+            cache.update(pod);
+            if (measuredPods.add(pod.getMetadata().getUid())) {
+                recordStartupPhases(pod);
+                V1ContainerStateRunning running = pod.getStatus().getContainerStatuses().get(0).getState().getRunning();
+                if (running != null) {
+                    observePhase("pushed_readiness", running.getStartedAt(), OffsetDateTime.now());
+                }
+            }
+        }
+        return getGameInfo(pod);
+    }
+
+    /**
+     * @param id
+     * @return The game's pod. Null if the game has no pod yet
+     */
+    public GameInfo getGame(String id) {
+        for (V1Pod pod : cache.getGamePods(id)) {
+            return getGameInfo(pod);
+        }
+        return null;
+    }
+
+    /**
+     * @param gamePod
+     * @return Null if the pod isn't a game pod with a game ID, e.g. a standby game
+     */
+    private static GameInfo getGameInfo(V1Pod gamePod) {
+        if (!"beans-game".equals(ClusterCache.getLabel(gamePod, "purpose"))) {
+            return null;
+        }
+        String id = ClusterCache.getLabel(gamePod, "game-id");
+        if (id == null) {
+            return null;
+        }
+
+        Map<String, String> annotations = gamePod.getMetadata().getAnnotations();
+        String creator = annotations == null ? "" : annotations.getOrDefault("creator", "");
+        String startTime = annotations == null ? "" : annotations.getOrDefault("start-time", "");
+        Instant start;
+        if (!startTime.isEmpty()) {
+            start = Instant.parse(startTime);
+        } else if (gamePod.getMetadata().getCreationTimestamp() != null) {
+            start = gamePod.getMetadata().getCreationTimestamp().toInstant();
+        } else {
+            start = Instant.now();
+        }
+
+        return new GameInfo(id, GameType.byString(ClusterCache.getLabel(gamePod, "game-type")), creator, start, getGameAddress(gamePod));
+    }
+
+    /**
+     * Listen for game pods starting, becoming ready or stopping. Driven by the pod watch, so the listener hears about
+     * a change as soon as the apiserver does
+     * @param listener
+     */
+    public void addGameListener(GameListener listener) {
+        cache.addPodHandler(new ResourceEventHandler<>() {
+            @Override
+            public void onAdd(V1Pod pod) {
+                onChange(pod);
+            }
+
+            @Override
+            public void onUpdate(V1Pod oldPod, V1Pod newPod) {
+                // a standby pod being claimed only changes its labels and annotations
+                if (Objects.equals(getGameInfo(oldPod), getGameInfo(newPod))) {
+                    return;
+                }
+                onChange(newPod);
+            }
+
+            @Override
+            public void onDelete(V1Pod pod, boolean deletedFinalStateUnknown) {
+                measuredPods.remove(pod.getMetadata().getUid());
+                GameInfo game = getGameInfo(pod);
+                if (game != null) {
+                    listener.onGameStopped(game.id());
+                }
+            }
+
+            private void onChange(V1Pod pod) {
+                // a deleted game's pod stays until it terminates. It's gone as far as players are concerned
+                if (pod.getMetadata().getDeletionTimestamp() != null) {
+                    String id = ClusterCache.getLabel(pod, "game-id");
+                    if (id != null && "beans-game".equals(ClusterCache.getLabel(pod, "purpose"))) {
+                        listener.onGameStopped(id);
+                    }
+                    return;
+                }
+
+                InetSocketAddress address = getGameAddress(pod);
+                boolean firstReady = address != null
+                        && "beans-game".equals(ClusterCache.getLabel(pod, "purpose"))
+                        && measuredPods.add(pod.getMetadata().getUid());
+                if (firstReady) {
+                    recordStartupPhases(pod);
+                }
+
+                GameInfo game = getGameInfo(pod);
+                if (game == null) {
+                    return;
+                }
+                listener.onGameChanged(game);
+                if (firstReady) {
+                    observePhase("registration", getConditionTime(pod, "Ready"), OffsetDateTime.now());
+                }
+            }
+        });
     }
 
     /**
      * Creates a PVC (Persistent Volume Claim) in kubernetes for storing a minecraft world
+     * Synchronized so parallel creates can't pass the cap together
      * @param stage Each PVC has a stage that shows what's stored in it
      * @return Name of the PVC
+     * @throws GameServerException If there are already K8S_MAX_WORLDS PVCs
      */
-    private String createClaim(String stage) throws GameServerException {
+    private synchronized String createClaim(String stage) throws GameServerException {
+        if (cache.getClaimCount() >= MAX_WORLDS) {
+            throw new GameServerException("Out of world storage. There are already " + MAX_WORLDS + " worlds");
+        }
         V1PersistentVolumeClaim pvc = new V1PersistentVolumeClaimBuilder()
                 .withNewMetadata()
-                    .withName("beans-world-" + Long.hashCode(System.currentTimeMillis()))
+                    .withGenerateName("beans-world-")
                     .addToLabels("stage", stage)
                     .addToLabels("purpose", "beans-world")
                 .endMetadata()
@@ -300,39 +1507,128 @@ public class KubernetesManager {
                 .endSpec()
                 .build();
         try {
-            coreV1Api.createNamespacedPersistentVolumeClaim(NAMESPACE, pvc, null, null, null, null);
-            return pvc.getMetadata().getName();
+            V1PersistentVolumeClaim created = api.call("create", "persistentvolumeclaims", () -> coreV1Api.createNamespacedPersistentVolumeClaim(NAMESPACE, pvc, null, null, null, null));
+            cache.update(created);
+            Metrics.getInstance().counter("beans_world_pvcs_total", "World PVCs taken for pre-gen or games, by source. The reuse rate is recycled / total", "source", "new").inc();
+            return created.getMetadata().getName();
         } catch (ApiException e) {
             throw new GameServerException(e);
         }
     }
 
+    /**
+     * Choose where each pre-gen world of a reconcile pass goes. Recycled claims are reused first, then new PVCs are
+     * steered to nodes with room. Each pick goes to the node with the fewest worlds, counting the picks before it
+     * @param snapshot
+     * @param count Worlds to start
+     * @return One target per world
+     */
+    private List<PreGenTarget> planPreGenTargets(ClusterSnapshot snapshot, int count) {
+        Map<String, Integer> worldsByNode = getWorldsByNode(snapshot);
+        List<V1PersistentVolumeClaim> recycled = new ArrayList<>(snapshot.getClaims("recycled"));
+        Collections.shuffle(recycled, random);
+        List<String> nodesWithRoom = count == 0 ? List.of() : capacity.getNodesWithRoom(getPreGenRequests());
+        Comparator<String> byWorlds = Comparator.comparingInt((node) -> worldsByNode.getOrDefault(node, 0));
+
+        List<PreGenTarget> targets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            PreGenTarget target;
+            if (!recycled.isEmpty()) {
+                V1PersistentVolumeClaim claim = recycled.stream()
+                        .min(Comparator.comparing(KubernetesManager::getClaimNode, Comparator.nullsLast(byWorlds))).get();
+                recycled.remove(claim);
+                target = new PreGenTarget(claim.getMetadata().getName(), getClaimNode(claim));
+            } else {
+                target = new PreGenTarget(null, nodesWithRoom.stream().min(byWorlds).orElse(null));
+            }
+            if (target.node() != null) {
+                worldsByNode.merge(target.node(), 1, Integer::sum);
+            }
+            targets.add(target);
+        }
+        return targets;
+    }
+
+    private void deleteClaim(String name) throws GameServerException {
+        try {
+            cache.remove(api.call("delete", "persistentvolumeclaims", () -> coreV1Api.deleteNamespacedPersistentVolumeClaim(name, NAMESPACE, null, null, null, null, null, null)));
+        } catch (ApiException e) {
+            if (e.getCode() != 404) {
+                throw new GameServerException(e);
+            }
+        }
+    }
+
     private void setClaimStage(String name, String stage) throws GameServerException {
         try {
-            V1Patch patch = new V1Patch("[{\"op\":\"replace\",\"path\":\"/metadata/labels/stage\",\"value\": \"" + stage + "\"}]");
-            coreV1Api.patchNamespacedPersistentVolumeClaim(name, NAMESPACE, patch, null, null, null, null, null);
+            V1Patch patch = jsonPatch(patchOp("replace", "/metadata/labels/stage", stage));
+            cache.update(api.call("patch", "persistentvolumeclaims", () -> coreV1Api.patchNamespacedPersistentVolumeClaim(name, NAMESPACE, patch, null, null, null, null, null)));
+        } catch (ApiException e) {
+            throw new GameServerException(e);
+        }
+    }
+
+    /**
+     * Change a claim's stage only if it is in the expected stage. The apiserver applies the patch's test op and
+     * replace op together, so only one of several concurrent callers can succeed
+     * @param name
+     * @param expected
+     * @param stage
+     * @return false if the claim was not in the expected stage, or no longer exists
+     */
+    private boolean compareAndSetClaimStage(String name, String expected, String stage) throws GameServerException {
+        try {
+            V1Patch patch = jsonPatch(
+                    patchOp("test", "/metadata/labels/stage", expected),
+                    patchOp("replace", "/metadata/labels/stage", stage));
+            cache.update(api.call("patch", "persistentvolumeclaims", () -> coreV1Api.patchNamespacedPersistentVolumeClaim(name, NAMESPACE, patch, null, null, null, null, null)));
+            return true;
         } catch (ApiException e) {
+            if (isLostRace(e)) {
+                return false;
+            }
             throw new GameServerException(e);
         }
     }
 
-    private void setClaimGameFinishTimeToNow(String name) throws GameServerException {
+    /**
+     * @param e
+     * @return true if a guarded patch failed because the object changed or was deleted first
+     */
+    private static boolean isLostRace(ApiException e) {
+        // 422 is a failed JSON patch test op
+        return e.getCode() == 404 || e.getCode() == 409 || e.getCode() == 422;
+    }
+
+    /**
+     * Move a claim to the finished stage and set its finish time, in one patch
+     * @param name
+     * @throws GameServerException
+     */
+    private void finishClaim(String name) throws GameServerException {
         try {
             String timestamp = Long.toString(System.currentTimeMillis());
-            V1Patch patch = new V1Patch("[{\"op\":\"add\",\"path\":\"/metadata/labels/game-finish-time\",\"value\": \"" + timestamp + "\"}]");
-            coreV1Api.patchNamespacedPersistentVolumeClaim(name, NAMESPACE, patch, null, null, null, null, null);
+            V1Patch patch = jsonPatch(
+                    patchOp("replace", "/metadata/labels/stage", "finished"),
+                    patchOp("add", "/metadata/labels/game-finish-time", timestamp));
+            cache.update(api.call("patch", "persistentvolumeclaims", () -> coreV1Api.patchNamespacedPersistentVolumeClaim(name, NAMESPACE, patch, null, null, null, null, null)));
         } catch (ApiException e) {
             throw new GameServerException(e);
         }
     }
 
-    private void createPreGenWorld() throws GameServerException {
-        String claimName = createClaim("pre-gen");
+    /**
+     * Start a job that empties a world PVC
+     * @param claimName
+     * @throws GameServerException
+     */
+    private void createWipeJob(String claimName) throws GameServerException {
         V1Job job = new V1JobBuilder()
-                .withNewMetadataLike(PRE_GEN_JOB.getMetadata())
-                    .withName("pre-gen-" + Long.hashCode(System.currentTimeMillis()))
+                .withNewMetadataLike(WIPE_JOB.getMetadata())
+                    .withName(null)
+                    .withGenerateName("wipe-")
                 .endMetadata()
-                .withNewSpecLike(PRE_GEN_JOB.getSpec())
+                .withNewSpecLike(WIPE_JOB.getSpec())
                     .editTemplate()
                         .editSpec()
                             .withPriorityClassName(PRE_GEN_PRIORITY_CLASS)
@@ -346,9 +1642,186 @@ public class KubernetesManager {
                 .endSpec()
                 .build();
         try {
-            batchV1Api.createNamespacedJob(NAMESPACE, job, null, null, null, null);
+            cache.update(api.call("create", "jobs", () -> batchV1Api.createNamespacedJob(NAMESPACE, job, null, null, null, null)));
+        } catch (ApiException e) {
+            throw new GameServerException(e);
+        }
+    }
+
+    /**
+     * Start a job that generates a world and archives it to the template volume
+     * @param index
+     * @throws GameServerException
+     */
+    private void createTemplateJob(int index) throws GameServerException {
+        V1PodSpec preGenSpec = PRE_GEN_JOB.getSpec().getTemplate().getSpec();
+        List<V1Container> initContainers = List.of(
+                new V1ContainerBuilder(preGenSpec.getInitContainers().get(0))
+                        .withCommand(ArtifactCache.getInstance().getDownloadCommand(PRE_GEN_PLUGIN_URLS, "/plugins"))
+                        .build(),
+                // generates the world, then the archive container runs. Init containers can't have probes
+                new V1ContainerBuilder(preGenSpec.getContainers().get(0))
+                        .withReadinessProbe(null)
+                        .withLivenessProbe(null)
+                        .build()
+        );
+        String templateIndex = Integer.toString(index);
+        V1Job job = new V1JobBuilder()
+                .withNewMetadataLike(TEMPLATE_JOB.getMetadata())
+                    .withName(null)
+                    .withGenerateName("world-template-")
+                    .addToLabels("template-index", templateIndex)
+                .endMetadata()
+                .withNewSpecLike(TEMPLATE_JOB.getSpec())
+                    .editTemplate()
+                        .editMetadata()
+                            .addToLabels("template-index", templateIndex)
+                        .endMetadata()
+                        .editSpec()
+                            .withPriorityClassName(PRE_GEN_PRIORITY_CLASS)
+                            .withInitContainers(initContainers)
+                            .editVolume(2)
+                                .editPersistentVolumeClaim()
+                                    .withClaimName(TEMPLATE_CLAIM)
+                                .endPersistentVolumeClaim()
+                            .endVolume()
+                        .endSpec()
+                    .endTemplate()
+                .endSpec()
+                .build();
+        setEnv(job, "TEMPLATE", getTemplateFile(index));
+        try {
+            cache.update(api.call("create", "jobs", () -> batchV1Api.createNamespacedJob(NAMESPACE, job, null, null, null, null)));
         } catch (ApiException e) {
             throw new GameServerException(e);
         }
     }
+
+    /**
+     * Fill a world PVC for the ready pool, from a template if there is one
+     * @param template Archive to clone. Null to generate the world
+     * @param target Where the world goes, see planPreGenTargets
+     * @throws GameServerException
+     */
+    private void createPreGenWorld(String template, PreGenTarget target) throws GameServerException {
+        String claimName = target.recycledClaim();
+        if (claimName == null) {
+            claimName = createClaim("pre-gen");
+        } else if (compareAndSetClaimStage(claimName, "recycled", "pre-gen")) {
+            Metrics.getInstance().counter("beans_world_pvcs_total", "World PVCs taken for pre-gen or games, by source. The reuse rate is recycled / total", "source", "recycled").inc();
+        } else {
+            // gone, or taken by another proxy. The next pass plans again
+            return;
+        }
+        V1Job job = template == null ? buildGenerationJob(claimName) : buildCloneJob(claimName, template);
+        // a new PVC is bound to whichever node its first pod runs on, so it's steered to the planned node
+        ClusterCapacity.Resources requests = ClusterCapacity.getRequests(job.getSpec().getTemplate().getSpec());
+        String node = target.recycledClaim() == null ? target.node() : null;
+        ClusterCapacity.Reservation reservation = null;
+        if (node != null) {
+            preferNode(job, capacity.getHostname(node));
+            reservation = capacity.reserveOn(requests, node);
+        }
+        Metrics.getInstance().counter("beans_pre_gen_jobs_total", "Pre-gen jobs started, by how they fill the world",
+                "method", template == null ? "generate" : "clone").inc();
+        String jobName = null;
+        try {
+            V1Job created = api.call("create", "jobs", () -> batchV1Api.createNamespacedJob(NAMESPACE, job, null, null, null, null));
+            cache.update(created);
+            jobName = created.getMetadata().getName();
+        } catch (ApiException e) {
+            throw new GameServerException(e);
+        } finally {
+            // held until the pod shows up, or given up if there'll be none
+            if (reservation != null && jobName != null) {
+                capacity.bind(reservation, jobName);
+            } else if (reservation != null) {
+                capacity.release(reservation);
+            }
+        }
+    }
+
+    /**
+     * @param snapshot
+     * @return Ready and pre-gen worlds on each node. Worlds not bound to a node aren't counted
+     */
+    private Map<String, Integer> getWorldsByNode(ClusterSnapshot snapshot) {
+        Map<String, Integer> worlds = new HashMap<>();
+        for (String stage : List.of("ready", "pre-gen")) {
+            for (V1PersistentVolumeClaim claim : snapshot.getClaims(stage)) {
+                String node = getClaimNode(claim);
+                if (node != null) {
+                    worlds.merge(node, 1, Integer::sum);
+                }
+            }
+        }
+        return worlds;
+    }
+
+    /**
+     * Ask the scheduler to run a job's pod on a node if it can. Not required, so the pod still runs if the node fills
+     * @param job
+     * @param hostname
+     */
+    private static void preferNode(V1Job job, String hostname) {
+        job.getSpec().getTemplate().getSpec().setAffinity(new V1Affinity().nodeAffinity(new V1NodeAffinity()
+                .addPreferredDuringSchedulingIgnoredDuringExecutionItem(new V1PreferredSchedulingTerm()
+                        .weight(100)
+                        .preference(new V1NodeSelectorTerm().addMatchExpressionsItem(new V1NodeSelectorRequirement()
+                                .key("kubernetes.io/hostname")
+                                .operator("In")
+                                .addValuesItem(hostname))))));
+    }
+
+    private static V1Job buildCloneJob(String claimName, String template) {
+        V1Job job = new V1JobBuilder()
+                .withNewMetadataLike(CLONE_JOB.getMetadata())
+                    .withName(null)
+                    .withGenerateName("pre-gen-")
+                .endMetadata()
+                .withNewSpecLike(CLONE_JOB.getSpec())
+                    .editTemplate()
+                        .editSpec()
+                            .withPriorityClassName(PRE_GEN_PRIORITY_CLASS)
+                            .editVolume(0)
+                                .editPersistentVolumeClaim()
+                                    .withClaimName(claimName)
+                                .endPersistentVolumeClaim()
+                            .endVolume()
+                            .editVolume(1)
+                                .editPersistentVolumeClaim()
+                                    .withClaimName(TEMPLATE_CLAIM)
+                                .endPersistentVolumeClaim()
+                            .endVolume()
+                        .endSpec()
+                    .endTemplate()
+                .endSpec()
+                .build();
+        setEnv(job, "TEMPLATE", template);
+        return job;
+    }
+
+    private static V1Job buildGenerationJob(String claimName) {
+        return new V1JobBuilder()
+                .withNewMetadataLike(PRE_GEN_JOB.getMetadata())
+                    .withName(null)
+                    .withGenerateName("pre-gen-")
+                .endMetadata()
+                .withNewSpecLike(PRE_GEN_JOB.getSpec())
+                    .editTemplate()
+                        .editSpec()
+                            .withPriorityClassName(PRE_GEN_PRIORITY_CLASS)
+                            .editInitContainer(0)
+                                .withCommand(ArtifactCache.getInstance().getDownloadCommand(PRE_GEN_PLUGIN_URLS, "/plugins"))
+                            .endInitContainer()
+                            .editVolume(0)
+                                .editPersistentVolumeClaim()
+                                    .withClaimName(claimName)
+                                .endPersistentVolumeClaim()
+                            .endVolume()
+                        .endSpec()
+                    .endTemplate()
+                .endSpec()
+                .build();
+    }
 }
@@ -0,0 +1,80 @@
+package beansplusplus.lobby;
+
+import io.kubernetes.client.extended.leaderelection.LeaderElectionConfig;
+import io.kubernetes.client.extended.leaderelection.LeaderElector;
+import io.kubernetes.client.extended.leaderelection.resourcelock.LeaseLock;
+import io.kubernetes.client.openapi.ApiClient;
+import net.md_5.bungee.api.ProxyServer;
+
+import java.time.Duration;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Picks one lobby proxy to run the reconciler, through a coordination.k8s.io Lease. Every proxy keeps serving
+ * commands from its own watch-fed cache. Only the leader tops up pre-gen jobs, finishes games and refills the
+ * standby pools, so proxies don't duplicate or fight over those changes.
+ * If the leader dies another proxy takes over once the lease expires, within LEASE_DURATION.
+ */
+public class LeaderElection {
+  private static final String LEASE_NAME = Env.getString("K8S_LEADER_LEASE", "beans-lobby-leader");
+  private static final Duration LEASE_DURATION = Duration.ofSeconds(8);
+  private static final Duration RENEW_DEADLINE = Duration.ofSeconds(6);
+  private static final Duration RETRY_PERIOD = Duration.ofSeconds(2);
+
+  private final LeaderElector elector;
+  private final String identity;
+  private final Thread thread;
+  private volatile boolean leader = false;
+
+  /**
+   * @param namespace Namespace of the lease
+   * @param client
+   */
+  public LeaderElection(String namespace, ApiClient client) {
+    // HOSTNAME is the pod name in Kubernetes
+    identity = Env.getString("HOSTNAME", "lobby-" + UUID.randomUUID());
+    LeaseLock lock = new LeaseLock(namespace, LEASE_NAME, identity, client);
+    elector = new LeaderElector(new LeaderElectionConfig(lock, LEASE_DURATION, RENEW_DEADLINE, RETRY_PERIOD));
+
+    thread = new Thread(this::run, "beans-leader-election");
+    thread.setDaemon(true);
+
+    Metrics.getInstance().gauge("beans_leader", "1 while this proxy is the leader running the reconciler", () -> leader ? 1 : 0);
+  }
+
+  public void start() {
+    thread.start();
+  }
+
+  public void stop() {
+    try {
+      elector.close();
+    } catch (Exception e) {
+      getLogger().warning("Failed to release the leader lease: " + e.getMessage());
+    }
+    thread.interrupt();
+  }
+
+  public boolean isLeader() {
+    return leader;
+  }
+
+  private void run() {
+    // run returns when leadership is lost, so campaign again until stopped
+    while (!Thread.currentThread().isInterrupted()) {
+      elector.run(() -> {
+        leader = true;
+        getLogger().info(identity + " is now the leader and runs the reconciler");
+      }, () -> {
+        leader = false;
+        getLogger().info(identity + " is no longer the leader");
+      });
+      leader = false;
+    }
+  }
+
+  private static Logger getLogger() {
+    return ProxyServer.getInstance().getLogger();
+  }
+}
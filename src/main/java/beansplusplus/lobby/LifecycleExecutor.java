@@ -0,0 +1,113 @@
+package beansplusplus.lobby;
+
+import net.md_5.bungee.api.ProxyServer;
+
+import java.time.Duration;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Runs game lifecycle operations (create, delete, reconcile) off the BungeeCord scheduler and command threads.
+ * Operations wait in a bounded queue for a small pool of threads, and each has a timeout. The reconcile tick has its
+ * own thread, so a slow apiserver delays reconciling without delaying player commands.
+ */
+public class LifecycleExecutor {
+  private static final LifecycleExecutor LIFECYCLE_EXECUTOR = new LifecycleExecutor();
+  private static final int THREADS = Env.getInt("LIFECYCLE_THREADS", 4);
+  private static final int QUEUE_SIZE = Env.getInt("LIFECYCLE_QUEUE_SIZE", 32);
+
+  public static LifecycleExecutor getInstance() {
+    return LIFECYCLE_EXECUTOR;
+  }
+
+  private final ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.SECONDS,
+      new ArrayBlockingQueue<>(QUEUE_SIZE), threadFactory("beans-lifecycle"));
+  private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1, threadFactory("beans-reconcile"));
+
+  private final Metrics.Counter rejected;
+
+  private LifecycleExecutor() {
+    Metrics metrics = Metrics.getInstance();
+    metrics.gauge("beans_lifecycle_queue_depth", "Operations waiting for a lifecycle thread", () -> executor.getQueue().size());
+    metrics.gauge("beans_lifecycle_active", "Operations running on lifecycle threads", () -> executor.getActiveCount());
+    rejected = metrics.counter("beans_lifecycle_rejected_total", "Operations rejected because the queue was full");
+  }
+
+  private static ThreadFactory threadFactory(String name) {
+    AtomicInteger count = new AtomicInteger();
+    return (runnable) -> {
+      Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /**
+   * @return Number of operations that would run before a newly submitted one
+   */
+  public int getPending() {
+    int busy = executor.getActiveCount() >= THREADS ? 1 : 0;
+    return executor.getQueue().size() + busy;
+  }
+
+  /**
+   * Run an operation on a lifecycle thread
+   * @param operation Name used in metrics. E.g. create
+   * @param task
+   * @param timeout Time allowed, including time in the queue. The task is interrupted if it runs out
+   * @return Fails with RejectedExecutionException if the queue is full, or TimeoutException if the timeout passes
+   */
+  public <T> CompletableFuture<T> submit(String operation, Callable<T> task, Duration timeout) {
+    Metrics.Histogram waitTime = Metrics.getInstance().histogram("beans_lifecycle_wait_seconds", "Time operations spent queued", Metrics.LATENCY_BUCKETS, "operation", operation);
+    Metrics.Histogram runTime = Metrics.getInstance().histogram("beans_lifecycle_run_seconds", "Time operations spent running", Metrics.LATENCY_BUCKETS, "operation", operation);
+
+    CompletableFuture<T> result = new CompletableFuture<>();
+    long queuedAt = System.nanoTime();
+    Future<?> running;
+    try {
+      running = executor.submit(() -> {
+        waitTime.observeSince(queuedAt);
+        long startedAt = System.nanoTime();
+        try {
+          result.complete(task.call());
+        } catch (Throwable e) {
+          result.completeExceptionally(e);
+        } finally {
+          runTime.observeSince(startedAt);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      rejected.inc();
+      return CompletableFuture.failedFuture(e);
+    }
+
+    result.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS).whenComplete((value, error) -> {
+      if (error instanceof TimeoutException) {
+        running.cancel(true);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Run a task repeatedly on the reconcile thread. A run never overlaps the previous one
+   * @param task
+   * @param period Delay between the end of one run and the start of the next
+   */
+  public void scheduleReconcile(Runnable task, Duration period) {
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        // a thrown exception would cancel the schedule
+        ProxyServer.getInstance().getLogger().log(Level.WARNING, "Reconcile task failed", e);
+      }
+    }, 0, period.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  public void shutdown() {
+    scheduler.shutdownNow();
+    executor.shutdownNow();
+  }
+}
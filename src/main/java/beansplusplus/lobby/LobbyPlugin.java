@@ -3,18 +3,34 @@ package beansplusplus.lobby;
 import net.md_5.bungee.api.ProxyServer;
 import net.md_5.bungee.api.plugin.Plugin;
 
-import java.util.concurrent.TimeUnit;
+import java.io.IOException;
+import java.time.Duration;
 
 public class LobbyPlugin extends Plugin {
   @Override
   public void onEnable() {
     getLogger().info("Enabled LobbyPlugin");
 
+    try {
+      HttpEndpoint.getInstance().start();
+      HttpEndpoint.getInstance().register("/metrics", Metrics.getInstance()::serve);
+      new RegistrationEndpoint().start();
+    } catch (IOException e) {
+      getLogger().severe("Failed to start the HTTP endpoint: " + e.getMessage());
+    }
+
     GameManager.getInstance().registerPlugin(this);
 
     ProxyServer.getInstance().getPluginManager().registerCommand(this, new GameCommand());
     ProxyServer.getInstance().getPluginManager().registerCommand(this, new LobbyCommand());
 
-    ProxyServer.getInstance().getScheduler().schedule(this, () -> GameManager.getInstance().tick(), 0, 5, TimeUnit.SECONDS);
+    LifecycleExecutor.getInstance().scheduleReconcile(() -> GameManager.getInstance().tick(), Duration.ofSeconds(5));
+  }
+
+  @Override
+  public void onDisable() {
+    GameManager.getInstance().shutdown();
+    ArtifactCache.getInstance().stop();
+    HttpEndpoint.getInstance().stop();
   }
 }
\ No newline at end of file
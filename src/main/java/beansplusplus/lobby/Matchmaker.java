@@ -0,0 +1,245 @@
+package beansplusplus.lobby;
+
+import net.md_5.bungee.api.ChatColor;
+import net.md_5.bungee.api.ProxyServer;
+import net.md_5.bungee.api.chat.ComponentBuilder;
+import net.md_5.bungee.api.config.ServerInfo;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Pools players waiting for a game type, so players share games instead of each starting their own pod.
+ * Waiting players first fill games of the type that haven't got going yet: young games with free slots, and games
+ * the matchmaker is still starting. A new game is only started once enough players are waiting, or the longest
+ * wait passes a deadline. The whole batch is connected when its game is ready.
+ */
+public class Matchmaker {
+  // players that fill a game
+  private static final int GAME_SIZE = Env.getInt("MATCH_GAME_SIZE", 8);
+  // players waiting that start a new game
+  private static final int BATCH_SIZE = Env.getInt("MATCH_BATCH_SIZE", 4);
+  private static final Duration MAX_WAIT = Duration.ofSeconds(Env.getLong("MATCH_MAX_WAIT_SECONDS", 60));
+  // how long after starting a game still takes players from the queue. Games are assumed to be underway after this
+  private static final Duration JOIN_WINDOW = Duration.ofSeconds(Env.getLong("MATCH_JOIN_WINDOW_SECONDS", 120));
+  // wait after a failed create before starting another game of the type
+  private static final Duration RETRY_DELAY = Duration.ofSeconds(10);
+
+  private record Waiting(String username, long queuedAt) {
+  }
+
+  /**
+   * Players for a game being started
+   */
+  private static class Batch {
+    final List<Waiting> players = new ArrayList<>();
+  }
+
+  private final GameManager gameManager;
+  private final Map<GameType, Deque<Waiting>> queues = new EnumMap<>(GameType.class);
+  private final Map<GameType, List<Batch>> starting = new EnumMap<>(GameType.class);
+  private final Map<GameType, Long> retryAt = new EnumMap<>(GameType.class);
+
+  public Matchmaker(GameManager gameManager) {
+    this.gameManager = gameManager;
+
+    Metrics metrics = Metrics.getInstance();
+    for (GameType type : GameType.values()) {
+      queues.put(type, new ArrayDeque<>());
+      starting.put(type, new ArrayList<>());
+      metrics.gauge("beans_queue_length", "Players waiting in the matchmaking queue", () -> getQueueLength(type), "type", type.string());
+    }
+    metrics.gauge("beans_pods_per_player", "Game pods per player on a game server", () -> {
+      GameDirectory directory = gameManager.getDirectory();
+      int players = 0;
+      for (String id : directory.getIds()) {
+        players += directory.get(id).players();
+      }
+      return directory.size() / (double) Math.max(1, players);
+    });
+  }
+
+  private synchronized int getQueueLength(GameType type) {
+    return queues.get(type).size();
+  }
+
+  /**
+   * Add a player to the queue of a game type. A player is only ever in one queue
+   * @param player
+   * @param type
+   * @return Position in the queue. 0 if the player was placed in a game straight away
+   */
+  public synchronized int join(ProxiedPlayer player, GameType type) {
+    leave(player);
+    queues.get(type).addLast(new Waiting(player.getName(), System.nanoTime()));
+    match(type);
+    return positionOf(player.getName(), type);
+  }
+
+  /**
+   * @param player
+   * @return false if the player wasn't queued
+   */
+  public synchronized boolean leave(ProxiedPlayer player) {
+    boolean removed = false;
+    for (Deque<Waiting> queue : queues.values()) {
+      removed |= queue.removeIf((waiting) -> waiting.username().equals(player.getName()));
+    }
+    return removed;
+  }
+
+  private int positionOf(String username, GameType type) {
+    int position = 1;
+    for (Waiting waiting : queues.get(type)) {
+      if (waiting.username().equals(username)) {
+        return position;
+      }
+      position++;
+    }
+    return 0;
+  }
+
+  /**
+   * Match every queue. Called on a schedule so wait deadlines pass without anyone else joining
+   */
+  public synchronized void tick() {
+    for (GameType type : GameType.values()) {
+      match(type);
+    }
+  }
+
+  private void match(GameType type) {
+    Deque<Waiting> queue = queues.get(type);
+    queue.removeIf((waiting) -> ProxyServer.getInstance().getPlayer(waiting.username()) == null);
+    if (queue.isEmpty()) {
+      return;
+    }
+
+    // fill young games that have room
+    GameDirectory directory = gameManager.getDirectory();
+    for (String id : directory.getIds()) {
+      GameDirectory.Entry entry = directory.get(id);
+      if (!isJoinable(entry, type) || gameManager.isDraining(id)) {
+        continue;
+      }
+      int slots = GAME_SIZE - entry.players();
+      while (slots-- > 0 && !queue.isEmpty()) {
+        Waiting waiting = queue.pollFirst();
+        observeWait(type, waiting);
+        connect(waiting.username(), entry.server(), id);
+      }
+    }
+
+    // then games being started for earlier batches
+    for (Batch batch : starting.get(type)) {
+      while (batch.players.size() < GAME_SIZE && !queue.isEmpty()) {
+        Waiting waiting = queue.pollFirst();
+        batch.players.add(waiting);
+        message(waiting.username(), "A game of " + type.string() + " is starting for you. Please wait...", ChatColor.AQUA);
+      }
+    }
+
+    // start a new game once enough players wait, or someone has waited too long
+    while (canStart(type) && (queue.size() >= BATCH_SIZE || (!queue.isEmpty() && System.nanoTime() - queue.peekFirst().queuedAt() > MAX_WAIT.toNanos()))) {
+      Batch batch = new Batch();
+      while (batch.players.size() < GAME_SIZE && !queue.isEmpty()) {
+        batch.players.add(queue.pollFirst());
+      }
+      if (!start(type, batch)) {
+        // the admission or lifecycle queue is full, or every player already has a creation waiting
+        requeue(type, batch);
+      }
+    }
+  }
+
+  private boolean canStart(GameType type) {
+    Long at = retryAt.get(type);
+    return at == null || System.nanoTime() - at >= 0;
+  }
+
+  /**
+   * Put a batch back at the front of the queue, in order. No game of the type is started until RETRY_DELAY passes
+   * @param type
+   * @param batch
+   */
+  private void requeue(GameType type, Batch batch) {
+    for (int i = batch.players.size() - 1; i >= 0; i--) {
+      queues.get(type).addFirst(batch.players.get(i));
+    }
+    retryAt.put(type, System.nanoTime() + RETRY_DELAY.toNanos());
+  }
+
+  private static boolean isJoinable(GameDirectory.Entry entry, GameType type) {
+    return entry.state() == GameDirectory.State.READY
+        && entry.game().type() == type
+        && entry.players() < GAME_SIZE
+        && Duration.between(entry.game().startTime(), Instant.now()).compareTo(JOIN_WINDOW) < 0;
+  }
+
+  /**
+   * Create a game for a batch. Its creator is the first player without a creation waiting for room already, as
+   * a player can only have one
+   * @param type
+   * @param batch
+   * @return false if the game couldn't be queued for creation
+   */
+  private boolean start(GameType type, Batch batch) {
+    String creator = batch.players.stream()
+        .map(Waiting::username)
+        .filter((username) -> !gameManager.isAwaitingAdmission(username))
+        .findFirst().orElse(null);
+    if (creator == null) {
+      return false;
+    }
+    CompletableFuture<ServerInfo> created = gameManager.submitCreate(type, creator);
+    if (created == null) {
+      return false;
+    }
+    starting.get(type).add(batch);
+    for (Waiting waiting : batch.players) {
+      message(waiting.username(), "A game of " + type.string() + " is starting for you. Please wait...", ChatColor.AQUA);
+    }
+
+    created.whenComplete((info, error) -> {
+      synchronized (this) {
+        starting.get(type).remove(batch);
+        if (error != null) {
+          requeue(type, batch);
+          return;
+        }
+        for (Waiting waiting : batch.players) {
+          observeWait(type, waiting);
+          // the creator is connected by the create itself
+          if (!waiting.username().equals(creator)) {
+            connect(waiting.username(), info, info.getName());
+          }
+        }
+      }
+    });
+    return true;
+  }
+
+  private static void observeWait(GameType type, Waiting waiting) {
+    Metrics.getInstance().histogram("beans_queue_wait_seconds", "Time players waited in the matchmaking queue", Metrics.LATENCY_BUCKETS,
+        "type", type.string()).observeSince(waiting.queuedAt());
+  }
+
+  private static void connect(String username, ServerInfo server, String id) {
+    ProxiedPlayer player = ProxyServer.getInstance().getPlayer(username);
+    if (player == null) {
+      return;
+    }
+    player.sendMessage(new ComponentBuilder("Found a game! Joining " + id).color(ChatColor.GREEN).create());
+    player.connect(server);
+  }
+
+  private static void message(String username, String message, ChatColor color) {
+    ProxiedPlayer player = ProxyServer.getInstance().getPlayer(username);
+    if (player != null) {
+      player.sendMessage(new ComponentBuilder(message).color(color).create());
+    }
+  }
+}
@@ -0,0 +1,181 @@
+package beansplusplus.lobby;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Metrics in the Prometheus text format, served at /metrics by the HTTP endpoint
+ */
+public class Metrics {
+  private static final Metrics METRICS = new Metrics();
+
+  public static Metrics getInstance() {
+    return METRICS;
+  }
+
+  public static class Counter {
+    private final DoubleAdder value = new DoubleAdder();
+
+    public void inc() {
+      value.add(1);
+    }
+
+    public void inc(double amount) {
+      value.add(amount);
+    }
+
+    public double get() {
+      return value.sum();
+    }
+  }
+
+  public static class Histogram {
+    private final double[] buckets;
+    private final long[] counts;
+    private long count;
+    private double sum;
+
+    private Histogram(double[] buckets) {
+      this.buckets = buckets;
+      this.counts = new long[buckets.length];
+    }
+
+    public synchronized void observe(double value) {
+      for (int i = 0; i < buckets.length; i++) {
+        if (value <= buckets[i]) {
+          counts[i]++;
+        }
+      }
+      count++;
+      sum += value;
+    }
+
+    /**
+     * Observe the seconds since a System.nanoTime() reading
+     * @param startNanos
+     */
+    public void observeSince(long startNanos) {
+      observe((System.nanoTime() - startNanos) / 1e9);
+    }
+
+    private synchronized void render(StringBuilder builder, String name, String labels) {
+      for (int i = 0; i < buckets.length; i++) {
+        builder.append(name).append("_bucket").append(withLabel(labels, "le", Double.toString(buckets[i])))
+            .append(' ').append(counts[i]).append('\n');
+      }
+      builder.append(name).append("_bucket").append(withLabel(labels, "le", "+Inf")).append(' ').append(count).append('\n');
+      builder.append(name).append("_sum").append(labels).append(' ').append(sum).append('\n');
+      builder.append(name).append("_count").append(labels).append(' ').append(count).append('\n');
+    }
+  }
+
+  // Buckets in seconds for operations that take from milliseconds to minutes
+  public static final double[] LATENCY_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300};
+
+  private static class Family {
+    private final String help;
+    private final String type;
+    // Key is the rendered label set. E.g. {result="hit"}
+    private final Map<String, Object> children = new ConcurrentSkipListMap<>();
+
+    private Family(String help, String type) {
+      this.help = help;
+      this.type = type;
+    }
+  }
+
+  private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+  /**
+   * Get or create a counter
+   * @param name
+   * @param help
+   * @param labels Alternating label names and values
+   * @return
+   */
+  public Counter counter(String name, String help, String... labels) {
+    return (Counter) family(name, help, "counter").children.computeIfAbsent(labelString(labels), (k) -> new Counter());
+  }
+
+  /**
+   * Register a gauge read when metrics are scraped. Replaces a gauge with the same name and labels
+   * @param name
+   * @param help
+   * @param value
+   * @param labels Alternating label names and values
+   */
+  public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+    family(name, help, "gauge").children.put(labelString(labels), value);
+  }
+
+  /**
+   * Get or create a histogram
+   * @param name
+   * @param help
+   * @param buckets Upper bounds, ascending
+   * @param labels Alternating label names and values
+   * @return
+   */
+  public Histogram histogram(String name, String help, double[] buckets, String... labels) {
+    return (Histogram) family(name, help, "histogram").children.computeIfAbsent(labelString(labels), (k) -> new Histogram(buckets));
+  }
+
+  private Family family(String name, String help, String type) {
+    return families.computeIfAbsent(name, (k) -> new Family(help, type));
+  }
+
+  private static String labelString(String... labels) {
+    if (labels.length == 0) return "";
+
+    StringBuilder builder = new StringBuilder("{");
+    for (int i = 0; i + 1 < labels.length; i += 2) {
+      if (i > 0) builder.append(',');
+      builder.append(labels[i]).append("=\"")
+          .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+          .append('"');
+    }
+    return builder.append('}').toString();
+  }
+
+  private static String withLabel(String labels, String name, String value) {
+    String label = name + "=\"" + value + "\"";
+    return labels.isEmpty() ? "{" + label + "}" : labels.substring(0, labels.length() - 1) + "," + label + "}";
+  }
+
+  public String render() {
+    StringBuilder builder = new StringBuilder();
+    for (Map.Entry<String, Family> entry : families.entrySet()) {
+      String name = entry.getKey();
+      Family family = entry.getValue();
+      builder.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+      builder.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+      for (Map.Entry<String, Object> child : family.children.entrySet()) {
+        if (child.getValue() instanceof Histogram histogram) {
+          histogram.render(builder, name, child.getKey());
+          continue;
+        }
+        double value = child.getValue() instanceof Counter counter
+            ? counter.get()
+            : ((DoubleSupplier) child.getValue()).getAsDouble();
+        builder.append(name).append(child.getKey()).append(' ').append(value).append('\n');
+      }
+    }
+    return builder.toString();
+  }
+
+  void serve(HttpExchange exchange) throws IOException {
+    byte[] body = render().getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+}
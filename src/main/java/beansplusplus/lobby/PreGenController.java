@@ -0,0 +1,104 @@
+package beansplusplus.lobby;
+
+import net.md_5.bungee.api.ProxyServer;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Sizes the pool of pre-generated worlds from demand.
+ * Worlds taken per minute, multiplied by how long it takes to generate one plus a look-ahead window, is how many
+ * ready worlds are needed to not run dry before replacements finish. Running that many generations at once keeps up
+ * with the demand (Little's law). Both are kept within the configured bounds.
+ */
+public class PreGenController {
+  private static final int MIN_WORLDS = Env.getInt("K8S_PRE_GEN_MIN", 2);
+  private static final int MAX_WORLDS = Env.getInt("K8S_PRE_GEN_MAX", 10);
+  private static final int MIN_SIMULTANEOUS_JOBS = Env.getInt("K8S_PRE_GEN_MIN_SIMULTANEOUS_JOBS", 1);
+  private static final int MAX_SIMULTANEOUS_JOBS = Env.getInt("K8S_PRE_GEN_MAX_SIMULTANEOUS_JOBS", 3);
+  // how far back demand is measured, and how far ahead it is predicted
+  private static final Duration WINDOW = Duration.ofMinutes(Env.getLong("K8S_PRE_GEN_WINDOW_MINUTES", 30));
+  private static final double SAFETY_FACTOR = 1.5;
+  // weight of the newest generation time in the moving average
+  private static final double GENERATION_TIME_SMOOTHING = 0.3;
+
+  private final Deque<Long> claimTimes = new ArrayDeque<>();
+  private double generationSeconds = 300; // until the first pre-gen job completes
+  private int targetWorlds = MIN_WORLDS;
+  private int simultaneousJobs = MIN_SIMULTANEOUS_JOBS;
+
+  private final Metrics.Counter hits;
+  private final Metrics.Counter misses;
+
+  public PreGenController() {
+    Metrics metrics = Metrics.getInstance();
+    hits = metrics.counter("beans_world_claims_total", "Worlds taken for games", "result", "hit");
+    misses = metrics.counter("beans_world_claims_total", "Worlds taken for games", "result", "miss");
+    metrics.gauge("beans_pre_gen_target_worlds", "Target number of ready or generating worlds", () -> getTargetWorlds());
+    metrics.gauge("beans_pre_gen_simultaneous_jobs", "Maximum pre-gen jobs running at once", () -> getSimultaneousJobs());
+    metrics.gauge("beans_pre_gen_generation_seconds", "Moving average of pre-gen job duration", () -> getGenerationSeconds());
+    metrics.gauge("beans_pre_gen_demand_per_minute", "Worlds taken per minute over the window", () -> getDemandPerMinute());
+    metrics.gauge("beans_world_pool_miss_ratio", "Fraction of games that started without a pre-generated world", () -> {
+      double total = hits.get() + misses.get();
+      return total == 0 ? 0 : misses.get() / total;
+    });
+  }
+
+  /**
+   * Record a world being taken for a game
+   * @param preGenerated false if the pool was empty and a world had to be created from scratch
+   */
+  public synchronized void recordClaim(boolean preGenerated) {
+    claimTimes.addLast(System.currentTimeMillis());
+    (preGenerated ? hits : misses).inc();
+  }
+
+  public synchronized void recordGeneration(Duration duration) {
+    generationSeconds += GENERATION_TIME_SMOOTHING * (duration.toSeconds() - generationSeconds);
+  }
+
+  /**
+   * Recalculate the pool size and pre-gen concurrency. Called every reconcile pass
+   */
+  public synchronized void update() {
+    long cutoff = System.currentTimeMillis() - WINDOW.toMillis();
+    while (!claimTimes.isEmpty() && claimTimes.peekFirst() < cutoff) {
+      claimTimes.removeFirst();
+    }
+
+    double perSecond = claimTimes.size() / (double) WINDOW.toSeconds();
+    double leadSeconds = generationSeconds + WINDOW.toSeconds();
+
+    int newTarget = clamp((int) Math.ceil(perSecond * leadSeconds * SAFETY_FACTOR), MIN_WORLDS, MAX_WORLDS);
+    int newSimultaneousJobs = clamp((int) Math.ceil(perSecond * generationSeconds * SAFETY_FACTOR), MIN_SIMULTANEOUS_JOBS, MAX_SIMULTANEOUS_JOBS);
+
+    if (newTarget != targetWorlds || newSimultaneousJobs != simultaneousJobs) {
+      ProxyServer.getInstance().getLogger().info(String.format(
+          "Pre-gen pool resized: %d worlds, %d jobs at once (demand %.2f/min, generation %.0fs)",
+          newTarget, newSimultaneousJobs, perSecond * 60, generationSeconds));
+    }
+    targetWorlds = newTarget;
+    simultaneousJobs = newSimultaneousJobs;
+  }
+
+  private static int clamp(int value, int min, int max) {
+    return Math.max(min, Math.min(max, value));
+  }
+
+  public synchronized int getTargetWorlds() {
+    return targetWorlds;
+  }
+
+  public synchronized int getSimultaneousJobs() {
+    return simultaneousJobs;
+  }
+
+  public synchronized double getGenerationSeconds() {
+    return generationSeconds;
+  }
+
+  public synchronized double getDemandPerMinute() {
+    return claimTimes.size() / (double) WINDOW.toMinutes();
+  }
+}
@@ -0,0 +1,100 @@
+package beansplusplus.lobby;
+
+import com.sun.net.httpserver.HttpExchange;
+import net.md_5.bungee.api.ProxyServer;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * POST /games/ready?pod=[pod name]&port=[port], sent by a game pod's register container as soon as its server
+ * accepts connections. Saves waiting for the readiness probe and the watch.
+ * Requests need the REGISTRATION_TOKEN shared with game pods as a bearer token, and must come from the pod's own IP.
+ * The pod watch still decides in the end: a pod whose server restarts or stops is unregistered as before.
+ */
+public class RegistrationEndpoint {
+  private static final String TOKEN = Env.getString("REGISTRATION_TOKEN", null);
+
+  private final Metrics.Counter registered;
+  private final Metrics.Counter standby;
+  private final Metrics.Counter rejected;
+
+  public RegistrationEndpoint() {
+    Metrics metrics = Metrics.getInstance();
+    registered = metrics.counter("beans_push_registrations_total", "Readiness pushed by game pods", "result", "registered");
+    standby = metrics.counter("beans_push_registrations_total", "Readiness pushed by game pods", "result", "standby");
+    rejected = metrics.counter("beans_push_registrations_total", "Readiness pushed by game pods", "result", "rejected");
+  }
+
+  /**
+   * Serve /games/ready. Does nothing without REGISTRATION_TOKEN, leaving readiness to the probe
+   * @throws IOException If the HTTP endpoint isn't running
+   */
+  public void start() throws IOException {
+    if (TOKEN == null || TOKEN.isEmpty()) {
+      ProxyServer.getInstance().getLogger().info("REGISTRATION_TOKEN isn't set. Games are registered once their readiness probe passes");
+      return;
+    }
+    HttpEndpoint.getInstance().register("/games/ready", this::serve);
+  }
+
+  private void serve(HttpExchange exchange) throws IOException {
+    if (!exchange.getRequestMethod().equals("POST")) {
+      respond(exchange, 405);
+      return;
+    }
+    if (!isAuthorized(exchange.getRequestHeaders().getFirst("Authorization"))) {
+      rejected.inc();
+      respond(exchange, 401);
+      return;
+    }
+
+    String pod = getQuery(exchange).get("pod");
+    if (pod == null) {
+      respond(exchange, 400);
+      return;
+    }
+
+    try {
+      GameInfo game = GameManager.getInstance().registerReady(pod, exchange.getRemoteAddress().getAddress());
+      (game == null ? standby : registered).inc();
+      respond(exchange, 204);
+    } catch (GameServerException e) {
+      rejected.inc();
+      ProxyServer.getInstance().getLogger().warning("Rejected readiness of " + pod + ": " + e.getMessage());
+      respond(exchange, 403);
+    }
+  }
+
+  private static boolean isAuthorized(String header) {
+    if (header == null || !header.startsWith("Bearer ")) {
+      return false;
+    }
+    // constant time, so the token can't be guessed a character at a time
+    return MessageDigest.isEqual(header.substring("Bearer ".length()).getBytes(StandardCharsets.UTF_8), TOKEN.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static Map<String, String> getQuery(HttpExchange exchange) {
+    Map<String, String> query = new HashMap<>();
+    String raw = exchange.getRequestURI().getRawQuery();
+    if (raw == null) {
+      return query;
+    }
+    for (String pair : raw.split("&")) {
+      int equals = pair.indexOf('=');
+      if (equals > 0) {
+        query.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8), URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+      }
+    }
+    return query;
+  }
+
+  private static void respond(HttpExchange exchange, int status) throws IOException {
+    exchange.sendResponseHeaders(status, -1);
+    exchange.close();
+  }
+}
@@ -0,0 +1,130 @@
+package beansplusplus.lobby;
+
+import net.md_5.bungee.api.ProxyServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ready games of the registry, kept in a small file so a restarted proxy can register them before it has heard
+ * from the cluster. One game per line: id, type, creator, start time in epoch millis, host and port, tab separated.
+ * Written a moment after the registry changes rather than on every change. Restored games are only a guess until
+ * the cluster cache syncs, see GameManager. Proxies may share the file's directory, in which case the last to write
+ * wins.
+ */
+public class RegistrySnapshot implements GameListener {
+  private static final String VERSION = "beans-registry-v1";
+  private static final long WRITE_DELAY_SECONDS = 2;
+
+  private final Path file;
+  private final ServerRegistry registry;
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+    Thread thread = new Thread(runnable, "beans-registry-snapshot");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private boolean writeScheduled = false;
+
+  public RegistrySnapshot(Path file, ServerRegistry registry) {
+    this.file = file;
+    this.registry = registry;
+  }
+
+  /**
+   * Read the games saved by the last run. A missing or unreadable file is no games
+   * @return
+   */
+  public List<GameInfo> read() {
+    List<GameInfo> games = new ArrayList<>();
+    try {
+      if (!Files.exists(file)) {
+        return games;
+      }
+      List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+      if (lines.isEmpty() || !lines.get(0).equals(VERSION)) {
+        return games;
+      }
+      for (String line : lines.subList(1, lines.size())) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length != 6) {
+          continue;
+        }
+        games.add(new GameInfo(fields[0], GameType.byString(fields[1]), fields[2], Instant.ofEpochMilli(Long.parseLong(fields[3])),
+            InetSocketAddress.createUnresolved(fields[4], Integer.parseInt(fields[5]))));
+      }
+    } catch (IOException | RuntimeException e) {
+      ProxyServer.getInstance().getLogger().warning("Ignoring the registry snapshot " + file + ": " + e.getMessage());
+    }
+    return games;
+  }
+
+  /**
+   * Save the registry now. Called on shutdown
+   */
+  public void stop() {
+    scheduler.shutdownNow();
+    write();
+  }
+
+  @Override
+  public void onGameChanged(GameInfo game) {
+    scheduleWrite();
+  }
+
+  @Override
+  public void onGameStopped(String id) {
+    scheduleWrite();
+  }
+
+  private synchronized void scheduleWrite() {
+    if (writeScheduled || scheduler.isShutdown()) {
+      return;
+    }
+    writeScheduled = true;
+    scheduler.schedule(() -> {
+      synchronized (this) {
+        writeScheduled = false;
+      }
+      write();
+    }, WRITE_DELAY_SECONDS, TimeUnit.SECONDS);
+  }
+
+  private synchronized void write() {
+    GameDirectory directory = registry.getDirectory();
+    StringBuilder contents = new StringBuilder(VERSION).append('\n');
+    for (String id : directory.getIds()) {
+      GameDirectory.Entry entry = directory.get(id);
+      GameInfo game = entry.game();
+      if (entry.state() != GameDirectory.State.READY) {
+        continue;
+      }
+      contents.append(id).append('\t')
+          .append(game.type() == null ? "" : game.type().string()).append('\t')
+          .append(game.creator()).append('\t')
+          .append(game.startTime().toEpochMilli()).append('\t')
+          .append(game.address().getHostString()).append('\t')
+          .append(game.address().getPort()).append('\n');
+    }
+
+    try {
+      Files.createDirectories(file.getParent());
+      // unique, as other proxies may be writing to the same directory
+      Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+      Files.writeString(temp, contents, StandardCharsets.UTF_8);
+      // readers never see half a file
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      ProxyServer.getInstance().getLogger().warning("Failed to save the registry snapshot: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package beansplusplus.lobby;
+
+import io.kubernetes.client.custom.Quantity;
+
+import java.util.Map;
+
+/**
+ * Resources given to a game server
+ * @param memoryRequest E.g. 3Gi
+ * @param memoryLimit
+ * @param cpuRequest E.g. 1500m
+ * @param cpuLimit
+ * @param heap JVM heap, passed to the server as MEMORY. E.g. 2500M
+ * @param viewDistance
+ */
+public record ResourceProfile(String memoryRequest, String memoryLimit, String cpuRequest, String cpuLimit, String heap, int viewDistance) {
+  /**
+   * @param values Keys as in game-catalog.yaml. Missing keys are taken from the fallback
+   * @param fallback
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  static ResourceProfile fromMap(Map<String, Object> values, ResourceProfile fallback) {
+    Map<String, Object> requests = (Map<String, Object>) values.getOrDefault("requests", Map.of());
+    Map<String, Object> limits = (Map<String, Object>) values.getOrDefault("limits", Map.of());
+    return new ResourceProfile(
+        String.valueOf(requests.getOrDefault("memory", fallback.memoryRequest())),
+        String.valueOf(limits.getOrDefault("memory", fallback.memoryLimit())),
+        String.valueOf(requests.getOrDefault("cpu", fallback.cpuRequest())),
+        String.valueOf(limits.getOrDefault("cpu", fallback.cpuLimit())),
+        String.valueOf(values.getOrDefault("heap", fallback.heap())),
+        Integer.parseInt(String.valueOf(values.getOrDefault("viewDistance", fallback.viewDistance())))
+    );
+  }
+
+  public Map<String, Quantity> requests() {
+    return Map.of("memory", new Quantity(memoryRequest), "cpu", new Quantity(cpuRequest));
+  }
+
+  public Map<String, Quantity> limits() {
+    return Map.of("memory", new Quantity(memoryLimit), "cpu", new Quantity(cpuLimit));
+  }
+}
@@ -0,0 +1,183 @@
+package beansplusplus.lobby;
+
+import io.kubernetes.client.custom.ContainerMetrics;
+import io.kubernetes.client.custom.PodMetrics;
+import io.kubernetes.client.custom.PodMetricsList;
+import io.kubernetes.client.custom.Quantity;
+import io.kubernetes.client.openapi.ApiClient;
+import io.kubernetes.client.openapi.ApiException;
+import io.kubernetes.client.openapi.models.V1Pod;
+import net.md_5.bungee.api.ProxyServer;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the peak memory and CPU of each game type from the metrics API (metrics-server), and works out the
+ * resource profile that would fit it. RIGHT_SIZING_MODE=recommend (the default) only logs and exports the
+ * recommendation. auto also applies it to new games. off stops sampling.
+ * The heap isn't right-sized. The server is started with MEMORY, which sets both -Xms and -Xmx, so the container's
+ * usage always includes the whole heap, and a heap sized from it would only ever grow. Requests and limits are sized
+ * from usage, but never below what the current heap needs.
+ */
+public class RightSizer {
+  private static final String MODE = Env.getString("RIGHT_SIZING_MODE", "recommend");
+  private static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(60);
+  // a day of samples
+  private static final int WINDOW_SAMPLES = 1440;
+  // an hour of samples before recommending anything
+  private static final int MIN_SAMPLES = 60;
+  private static final double HEADROOM = 1.2;
+  // limit compared to request, and heap compared to request, as in the built-in profile. The request is kept at
+  // least heap / HEAP_RATIO
+  private static final double LIMIT_RATIO = 4.0 / 3;
+  private static final double HEAP_RATIO = 0.78;
+  private static final double MIN_CPU = 0.25;
+  // recommendations closer than this to the current profile aren't applied
+  private static final double CHANGE_THRESHOLD = 0.1;
+
+  private record Usage(double memoryBytes, double cpuCores) {
+  }
+
+  private final String namespace;
+  private final io.kubernetes.client.Metrics metricsApi;
+  private final ApiGateway api = ApiGateway.getInstance();
+  private final Map<GameType, Deque<Usage>> samples = new EnumMap<>(GameType.class);
+  private final Map<GameType, ResourceProfile> recommendations = new ConcurrentHashMap<>();
+  private long lastSample = System.nanoTime() - INTERVAL_NANOS;
+  private boolean enabled = !MODE.equals("off");
+
+  public RightSizer(String namespace, ApiClient client) {
+    this.namespace = namespace;
+    this.metricsApi = new io.kubernetes.client.Metrics(client);
+
+    Metrics metrics = Metrics.getInstance();
+    for (GameType type : GameType.values()) {
+      samples.put(type, new ArrayDeque<>());
+      metrics.gauge("beans_game_peak_memory_bytes", "Peak memory of one game server of the type over the last day", () -> getPeak(type).memoryBytes(), "type", type.string());
+      metrics.gauge("beans_game_peak_cpu_cores", "Peak CPU of one game server of the type over the last day", () -> getPeak(type).cpuCores(), "type", type.string());
+      metrics.gauge("beans_game_recommended_memory_bytes", "Recommended memory request for the type. 0 until there are enough samples",
+          () -> recommendations.containsKey(type) ? new Quantity(recommendations.get(type).memoryRequest()).getNumber().doubleValue() : 0, "type", type.string());
+    }
+  }
+
+  /**
+   * Take a sample if one is due. Called from the reconcile tick
+   * @param gamePods Pods of every game
+   */
+  public synchronized void tick(List<V1Pod> gamePods) {
+    if (!enabled || System.nanoTime() - lastSample < INTERVAL_NANOS) {
+      return;
+    }
+    lastSample = System.nanoTime();
+
+    PodMetricsList podMetrics;
+    try {
+      podMetrics = api.call("list", "podmetrics", () -> metricsApi.getPodMetrics(namespace));
+    } catch (ApiException e) {
+      if (e.getCode() == 404) {
+        ProxyServer.getInstance().getLogger().warning("The metrics API isn't available. Install metrics-server to right-size game profiles");
+        enabled = false;
+      } else {
+        ProxyServer.getInstance().getLogger().warning("Failed to read pod metrics: " + e.getMessage());
+      }
+      return;
+    }
+
+    Map<String, GameType> podTypes = new HashMap<>();
+    for (V1Pod pod : gamePods) {
+      GameType type = GameType.byString(ClusterCache.getLabel(pod, "game-type"));
+      if (type != null) {
+        podTypes.put(pod.getMetadata().getName(), type);
+      }
+    }
+
+    Map<GameType, Usage> peaks = new EnumMap<>(GameType.class);
+    for (PodMetrics pod : podMetrics.getItems()) {
+      GameType type = podTypes.get(pod.getMetadata().getName());
+      if (type == null) {
+        continue;
+      }
+      for (ContainerMetrics container : pod.getContainers()) {
+        if (!container.getName().equals("minecraft-server")) {
+          continue;
+        }
+        double memory = container.getUsage().get("memory").getNumber().doubleValue();
+        double cpu = container.getUsage().get("cpu").getNumber().doubleValue();
+        Usage peak = peaks.getOrDefault(type, new Usage(0, 0));
+        peaks.put(type, new Usage(Math.max(peak.memoryBytes(), memory), Math.max(peak.cpuCores(), cpu)));
+      }
+    }
+
+    for (Map.Entry<GameType, Usage> peak : peaks.entrySet()) {
+      Deque<Usage> typeSamples = samples.get(peak.getKey());
+      typeSamples.addLast(peak.getValue());
+      if (typeSamples.size() > WINDOW_SAMPLES) {
+        typeSamples.removeFirst();
+      }
+      if (typeSamples.size() >= MIN_SAMPLES) {
+        recommend(peak.getKey());
+      }
+    }
+  }
+
+  private synchronized Usage getPeak(GameType type) {
+    double memory = 0;
+    double cpu = 0;
+    for (Usage usage : samples.get(type)) {
+      memory = Math.max(memory, usage.memoryBytes());
+      cpu = Math.max(cpu, usage.cpuCores());
+    }
+    return new Usage(memory, cpu);
+  }
+
+  private void recommend(GameType type) {
+    Usage peak = getPeak(type);
+    ResourceProfile current = type.getProfile();
+
+    double memoryRequest = Math.max(peak.memoryBytes() * HEADROOM, getHeapBytes(current.heap()) / HEAP_RATIO);
+    double cpuRequest = Math.max(MIN_CPU, peak.cpuCores() * HEADROOM);
+    double cpuLimit = Math.max(new Quantity(current.cpuLimit()).getNumber().doubleValue(), cpuRequest);
+    ResourceProfile recommended = new ResourceProfile(
+        mebibytes(memoryRequest) + "Mi",
+        mebibytes(memoryRequest * LIMIT_RATIO) + "Mi",
+        Math.round(cpuRequest * 1000) + "m",
+        Math.round(cpuLimit * 1000) + "m",
+        current.heap(),
+        current.viewDistance()
+    );
+
+    ResourceProfile previous = recommendations.put(type, recommended);
+    double currentMemory = new Quantity(current.memoryRequest()).getNumber().doubleValue();
+    double currentCpu = new Quantity(current.cpuRequest()).getNumber().doubleValue();
+    boolean significant = Math.abs(memoryRequest - currentMemory) / currentMemory > CHANGE_THRESHOLD
+        || Math.abs(cpuRequest - currentCpu) / currentCpu > CHANGE_THRESHOLD;
+
+    if (!significant) {
+      return;
+    }
+    if (MODE.equals("auto")) {
+      GameCatalog.getInstance().setProfile(type, recommended);
+    } else if (!recommended.equals(previous)) {
+      ProxyServer.getInstance().getLogger().info("Recommended resource profile for " + type.string() + ": " + recommended
+          + ". Current: " + current);
+    }
+  }
+
+  /**
+   * @param heap As passed to the JVM, e.g. 2500M. Suffixes are powers of 1024
+   * @return
+   */
+  private static double getHeapBytes(String heap) {
+    String value = heap.trim().toUpperCase();
+    // 0 without a suffix
+    int power = "KMG".indexOf(value.charAt(value.length() - 1)) + 1;
+    String number = power == 0 ? value : value.substring(0, value.length() - 1);
+    return Double.parseDouble(number) * Math.pow(1024, power);
+  }
+
+  private static long mebibytes(double bytes) {
+    return (long) Math.ceil(bytes / (1024 * 1024));
+  }
+}
@@ -0,0 +1,128 @@
+package beansplusplus.lobby;
+
+import net.md_5.bungee.api.config.ServerInfo;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiFunction;
+
+/**
+ * Keeps BungeeCord's server map in line with the game pods. Fed by the pod watch, so each change to a game's
+ * readiness or IP is one put or remove on the map, made as soon as the apiserver reports it.
+ * Every change also publishes a new GameDirectory for commands to read. Listeners hear about a game after both.
+ */
+public class ServerRegistry implements GameListener {
+  private final Map<String, ServerInfo> servers;
+  private final BiFunction<String, InetSocketAddress, ServerInfo> constructor;
+  private final List<GameListener> listeners = new CopyOnWriteArrayList<>();
+  // replaced, never changed. Written under the servers lock
+  private volatile GameDirectory directory = GameDirectory.EMPTY;
+
+  private final Metrics.Counter registered;
+  private final Metrics.Counter removed;
+
+  /**
+   * @param servers BungeeCord's server map. Only this registry should change it, as the map isn't thread safe
+   * @param constructor Creates server info for a game
+   */
+  public ServerRegistry(Map<String, ServerInfo> servers, BiFunction<String, InetSocketAddress, ServerInfo> constructor) {
+    this.servers = servers;
+    this.constructor = constructor;
+
+    Metrics metrics = Metrics.getInstance();
+    registered = metrics.counter("beans_server_registry_events_total", "Game servers registered or removed", "event", "registered");
+    removed = metrics.counter("beans_server_registry_events_total", "Game servers registered or removed", "event", "removed");
+  }
+
+  /**
+   * Listen for game servers being registered or removed. Listeners run on the thread that made the change, so they
+   * should not block
+   * @param listener
+   */
+  public void addListener(GameListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * @return The current directory. Safe to read from any thread without locking
+   */
+  public GameDirectory getDirectory() {
+    return directory;
+  }
+
+  /**
+   * @param id
+   * @return The registered server. Null if the game isn't ready
+   */
+  public ServerInfo get(String id) {
+    GameDirectory.Entry entry = directory.get(id);
+    return entry == null ? null : entry.server();
+  }
+
+  /**
+   * Register a game that became ready or moved to a new address. Unregister it if it stopped being ready
+   * @param game
+   */
+  @Override
+  public void onGameChanged(GameInfo game) {
+    String id = game.id();
+    if (id.equals("lobby")) {
+      return;
+    }
+
+    synchronized (servers) {
+      GameDirectory.Entry old = directory.get(id);
+      ServerInfo info = old == null ? null : old.server();
+
+      if (!game.isReady()) {
+        if (info != null) {
+          servers.remove(id);
+          removed.inc();
+          info = null;
+        }
+      } else if (info == null || !info.getSocketAddress().equals(game.address())) {
+        info = constructor.apply(id, game.address());
+        servers.put(id, info);
+        registered.inc();
+      }
+
+      if (old != null && old.game().equals(game) && Objects.equals(old.server(), info)) {
+        return;
+      }
+      directory = directory.with(new GameDirectory.Entry(game, info));
+    }
+
+    for (GameListener listener : listeners) {
+      listener.onGameChanged(game);
+    }
+  }
+
+  /**
+   * Remove a game. The lobby is never removed
+   * @param id
+   */
+  @Override
+  public void onGameStopped(String id) {
+    if (id.equals("lobby")) {
+      return;
+    }
+    synchronized (servers) {
+      GameDirectory.Entry old = directory.get(id);
+      if (old == null) {
+        return;
+      }
+      if (old.server() != null) {
+        servers.remove(id);
+        removed.inc();
+      }
+      directory = directory.without(id);
+    }
+
+    for (GameListener listener : listeners) {
+      listener.onGameStopped(id);
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package beansplusplus.lobby;
+
+import net.md_5.bungee.api.ServerPing;
+import net.md_5.bungee.api.config.ServerInfo;
+
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Pings every ready game server on a schedule and caches the results for /game list, so commands never wait on a
+ * ping. Pings are sent together through BungeeCord's async ping API, with a cap on how many are in flight.
+ * A cached status expires after a TTL, so a game that stops answering shows as unknown rather than stale.
+ */
+public class ServerStatusService implements GameListener {
+  private static final long INTERVAL_SECONDS = Env.getLong("STATUS_PING_INTERVAL_SECONDS", 10);
+  private static final long TTL_SECONDS = Env.getLong("STATUS_PING_TTL_SECONDS", 30);
+  private static final int MAX_IN_FLIGHT = Env.getInt("STATUS_PING_MAX_IN_FLIGHT", 32);
+
+  /**
+   * @param motd Message of the day, as plain text
+   * @param online Players online
+   * @param max Player limit
+   * @param latencyMillis Time the ping took
+   * @param time System.nanoTime() when the ping was answered
+   */
+  public record ServerStatus(String motd, int online, int max, long latencyMillis, long time) {
+    public boolean isFull() {
+      return max > 0 && online >= max;
+    }
+  }
+
+  private final ServerRegistry registry;
+  private final Map<String, ServerStatus> statuses = new ConcurrentHashMap<>();
+  private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+    Thread thread = new Thread(runnable, "beans-status-ping");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final Metrics.Histogram latency;
+  private final Metrics.Counter errors;
+  private final Metrics.Counter skipped;
+
+  public ServerStatusService(ServerRegistry registry) {
+    this.registry = registry;
+    registry.addListener(this);
+
+    Metrics metrics = Metrics.getInstance();
+    latency = metrics.histogram("beans_status_ping_seconds", "Time game servers took to answer a ping", Metrics.LATENCY_BUCKETS);
+    errors = metrics.counter("beans_status_ping_errors_total", "Pings that failed");
+    skipped = metrics.counter("beans_status_ping_skipped_total", "Pings not sent because too many were in flight");
+  }
+
+  public void start() {
+    scheduler.scheduleWithFixedDelay(this::pingAll, 0, INTERVAL_SECONDS, TimeUnit.SECONDS);
+  }
+
+  public void stop() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * @param id
+   * @return The last status of the game. Null if it hasn't answered within the TTL
+   */
+  public ServerStatus get(String id) {
+    ServerStatus status = statuses.get(id);
+    if (status == null || System.nanoTime() - status.time() > TimeUnit.SECONDS.toNanos(TTL_SECONDS)) {
+      return null;
+    }
+    return status;
+  }
+
+  private void pingAll() {
+    GameDirectory directory = registry.getDirectory();
+    for (String id : directory.getIds()) {
+      GameDirectory.Entry entry = directory.get(id);
+      if (entry.server() != null) {
+        ping(id, entry.server());
+      }
+    }
+  }
+
+  private void ping(String id, ServerInfo server) {
+    // a server still hasn't answered the last ping, or too many are outstanding. Try again next round
+    if (!inFlight.tryAcquire()) {
+      skipped.inc();
+      return;
+    }
+
+    long start = System.nanoTime();
+    try {
+      server.ping((ServerPing result, Throwable error) -> {
+        inFlight.release();
+        long now = System.nanoTime();
+        latency.observeSince(start);
+        if (error != null || result == null) {
+          errors.inc();
+          return;
+        }
+        // don't bring back a game removed while the ping was in flight
+        if (registry.get(id) != server) {
+          return;
+        }
+
+        ServerPing.Players players = result.getPlayers();
+        String motd = result.getDescriptionComponent() == null ? "" : result.getDescriptionComponent().toPlainText();
+        statuses.put(id, new ServerStatus(motd, players == null ? 0 : players.getOnline(), players == null ? 0 : players.getMax(),
+            TimeUnit.NANOSECONDS.toMillis(now - start), now));
+      });
+    } catch (RuntimeException e) {
+      inFlight.release();
+      errors.inc();
+    }
+  }
+
+  @Override
+  public void onGameChanged(GameInfo game) {
+    if (!game.isReady()) {
+      statuses.remove(game.id());
+    }
+  }
+
+  @Override
+  public void onGameStopped(String id) {
+    statuses.remove(id);
+  }
+}
@@ -0,0 +1,175 @@
+package beansplusplus.lobby;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the cache against a local stand-in for blob storage, and serves from it over HTTP like the proxy does
+ */
+public class ArtifactCacheTest {
+  private static final Duration GRACE = Duration.ofMinutes(10);
+
+  @TempDir
+  Path directory;
+
+  private HttpServer upstream;
+  private HttpServer endpoint;
+  private ArtifactCache cache;
+  private String url;
+
+  // what blob storage serves, and the If-None-Match header of each request it got
+  private volatile byte[] body;
+  private volatile String etag;
+  private final List<String> conditions = new CopyOnWriteArrayList<>();
+
+  @BeforeEach
+  public void start() throws IOException {
+    upstream = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    upstream.createContext("/plugins/", this::serveUpstream);
+    upstream.start();
+    url = "http://localhost:" + upstream.getAddress().getPort() + "/plugins/game.jar";
+    setUpstream("first", "\"1\"");
+
+    endpoint = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    cache = new ArtifactCache("http://localhost:" + endpoint.getAddress().getPort(), GRACE);
+    cache.open(directory);
+    endpoint.createContext("/artifacts/", cache::serve);
+    endpoint.start();
+  }
+
+  @AfterEach
+  public void stop() {
+    cache.stop();
+    upstream.stop(0);
+    endpoint.stop(0);
+  }
+
+  private void setUpstream(String content, String etag) {
+    this.body = content.getBytes(StandardCharsets.UTF_8);
+    this.etag = etag;
+  }
+
+  private void serveUpstream(HttpExchange exchange) throws IOException {
+    String condition = exchange.getRequestHeaders().getFirst("If-None-Match");
+    conditions.add(String.valueOf(condition));
+    exchange.getResponseHeaders().set("ETag", etag);
+    if (etag.equals(condition)) {
+      exchange.sendResponseHeaders(304, -1);
+      exchange.close();
+      return;
+    }
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private static String sha256(String content) throws Exception {
+    byte[] digest = MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8));
+    return String.format("%064x", new BigInteger(1, digest));
+  }
+
+  private String script() {
+    List<String> command = cache.getDownloadCommand(List.of(url), "/plugins");
+    assertEquals("sh", command.get(0));
+    return command.get(2);
+  }
+
+  private HttpResponse<byte[]> download(String path) throws Exception {
+    URI uri = URI.create("http://localhost:" + endpoint.getAddress().getPort() + path);
+    return HttpClient.newHttpClient().send(HttpRequest.newBuilder(uri).GET().build(), HttpResponse.BodyHandlers.ofByteArray());
+  }
+
+  @Test
+  public void storesJarsByHash() throws Exception {
+    cache.refresh(url);
+
+    String sha256 = sha256("first");
+    Path file = directory.resolve(sha256 + ".jar");
+    assertEquals("first", Files.readString(file));
+    assertTrue(script().contains("/artifacts/" + sha256 + "/game.jar"));
+    assertTrue(script().contains("echo '" + sha256 + "  /plugins/game.jar' | sha256sum -c -"));
+  }
+
+  @Test
+  public void downloadsUpstreamUntilCached() throws Exception {
+    assertEquals(List.of("wget", url, "-P", "/plugins"), cache.getDownloadCommand(List.of(url), "/plugins"));
+
+    // asking for it fetches it in the background
+    long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+    while (cache.getDownloadCommand(List.of(url), "/plugins").get(0).equals("wget")) {
+      assertTrue(System.nanoTime() < deadline, "Artifact wasn't fetched");
+      Thread.sleep(10);
+    }
+    assertTrue(script().contains("/artifacts/" + sha256("first") + "/game.jar"));
+  }
+
+  @Test
+  public void keepsJarWhenNotModified() throws Exception {
+    cache.refresh(url);
+    String before = script();
+    cache.refresh(url);
+
+    assertEquals(List.of("null", "\"1\""), conditions);
+    assertEquals(before, script());
+    try (var files = Files.list(directory)) {
+      assertEquals(1, files.count());
+    }
+  }
+
+  @Test
+  public void servesCachedJars() throws Exception {
+    cache.refresh(url);
+    String sha256 = sha256("first");
+
+    HttpResponse<byte[]> response = download("/artifacts/" + sha256 + "/game.jar");
+    assertEquals(200, response.statusCode());
+    assertEquals("application/java-archive", response.headers().firstValue("Content-Type").orElse(null));
+    assertEquals("first", new String(response.body(), StandardCharsets.UTF_8));
+
+    assertEquals(404, download("/artifacts/" + sha256("other") + "/game.jar").statusCode());
+    assertEquals(404, download("/artifacts/not-a-hash/game.jar").statusCode());
+  }
+
+  @Test
+  public void keepsSupersededJarsForGracePeriod() throws Exception {
+    cache.refresh(url);
+    String old = sha256("first");
+    setUpstream("second", "\"2\"");
+    cache.refresh(url);
+    assertTrue(script().contains("/artifacts/" + sha256("second") + "/game.jar"));
+
+    long now = System.nanoTime();
+    cache.removeUnused(now);
+    assertEquals(200, download("/artifacts/" + old + "/game.jar").statusCode());
+
+    cache.removeUnused(now + GRACE.toNanos() - 1);
+    assertTrue(Files.exists(directory.resolve(old + ".jar")));
+
+    cache.removeUnused(now + GRACE.toNanos());
+    assertFalse(Files.exists(directory.resolve(old + ".jar")));
+    assertTrue(Files.exists(directory.resolve(sha256("second") + ".jar")));
+  }
+}
@@ -0,0 +1,384 @@
+package beansplusplus.lobby;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.kubernetes.client.openapi.ApiClient;
+import io.kubernetes.client.util.Config;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Just enough of the Kubernetes API for KubernetesManager: list, watch, get, create, JSON patch and delete of jobs,
+ * pods, PVCs and config maps in any namespace, and an empty pod metrics list. Label selectors of label=value and
+ * label terms are applied to lists, and watches never send events.
+ * Objects are stored as JSON so the server doesn't depend on how the client serialises its models.
+ * Used by the tests and the benchmarks.
+ */
+public class FakeApiServer {
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final CountDownLatch stopped = new CountDownLatch(1);
+  private final Map<String, Map<String, JsonObject>> resources = new HashMap<>();
+  private long resourceVersion = 1;
+
+  public FakeApiServer() throws IOException {
+    for (String resource : List.of("jobs", "pods", "persistentvolumeclaims", "configmaps")) {
+      resources.put(resource, new LinkedHashMap<>());
+    }
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.setExecutor(executor);
+    server.createContext("/", this::handle);
+    server.start();
+  }
+
+  public void stop() {
+    stopped.countDown();
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  public ApiClient client() {
+    return Config.fromUrl("http://127.0.0.1:" + server.getAddress().getPort(), false);
+  }
+
+  public ApiClient watchClient() {
+    ApiClient client = client();
+    client.setReadTimeout(0);
+    return client;
+  }
+
+  /**
+   * Add running games, each with a ready pod
+   * @param ids Game IDs
+   */
+  public synchronized void seedGames(Collection<String> ids) {
+    int i = 0;
+    for (String id : ids) {
+      String jobName = "game-" + i;
+      String claimName = "beans-world-game-" + i;
+      JsonObject labels = labels("purpose", "beans-game", "game-id", id, "game-type", "block_shuffle");
+
+      JsonObject podSpec = new JsonObject();
+      podSpec.add("containers", array(container()));
+      JsonObject claim = new JsonObject();
+      claim.addProperty("claimName", claimName);
+      JsonObject volume = new JsonObject();
+      volume.addProperty("name", "world");
+      volume.add("persistentVolumeClaim", claim);
+      podSpec.add("volumes", array(volume));
+
+      JsonObject template = new JsonObject();
+      template.add("metadata", metadata(null, labels.deepCopy()));
+      template.add("spec", podSpec.deepCopy());
+      JsonObject jobSpec = new JsonObject();
+      jobSpec.add("template", template);
+      JsonObject job = new JsonObject();
+      job.add("metadata", metadata(jobName, labels.deepCopy()));
+      job.add("spec", jobSpec);
+      job.add("status", new JsonObject());
+      put("jobs", job);
+
+      JsonObject podLabels = labels.deepCopy();
+      podLabels.addProperty("job-name", jobName);
+      JsonObject containerStatus = new JsonObject();
+      containerStatus.addProperty("name", "minecraft-server");
+      containerStatus.addProperty("image", "itzg/minecraft-server");
+      containerStatus.addProperty("imageID", "");
+      containerStatus.addProperty("ready", true);
+      containerStatus.addProperty("restartCount", 0);
+      JsonObject podStatus = new JsonObject();
+      podStatus.addProperty("podIP", "10.0." + (i / 250) + "." + (i % 250 + 1));
+      podStatus.add("containerStatuses", array(containerStatus));
+      JsonObject pod = new JsonObject();
+      pod.add("metadata", metadata(jobName + "-pod", podLabels));
+      pod.add("spec", podSpec);
+      pod.add("status", podStatus);
+      put("pods", pod);
+
+      seedClaim(claimName, "game");
+      i++;
+    }
+  }
+
+  /**
+   * Add pre-generated worlds
+   * @param count
+   */
+  public synchronized void seedReadyClaims(int count) {
+    for (int i = 0; i < count; i++) {
+      seedClaim("beans-world-ready-" + i, "ready");
+    }
+  }
+
+  /**
+   * Reserve game IDs, as another proxy creating games would
+   * @param ids
+   */
+  public synchronized void seedIdReservations(Collection<String> ids) {
+    for (String id : ids) {
+      JsonObject reservation = new JsonObject();
+      reservation.add("metadata", metadata("beans-game-id-" + id, labels("purpose", "beans-game-id", "game-id", id)));
+      put("configmaps", reservation);
+    }
+  }
+
+  /**
+   * @param resource E.g. jobs
+   * @return Copies of the objects stored
+   */
+  public synchronized List<JsonObject> getObjects(String resource) {
+    List<JsonObject> objects = new ArrayList<>();
+    resources.get(resource).values().forEach((object) -> objects.add(object.deepCopy()));
+    return objects;
+  }
+
+  private void seedClaim(String name, String stage) {
+    JsonObject claim = new JsonObject();
+    claim.add("metadata", metadata(name, labels("purpose", "beans-world", "stage", stage)));
+    claim.add("spec", new JsonObject());
+    put("persistentvolumeclaims", claim);
+  }
+
+  private static JsonObject container() {
+    JsonObject port = new JsonObject();
+    port.addProperty("containerPort", 25565);
+    JsonObject container = new JsonObject();
+    container.addProperty("name", "minecraft-server");
+    container.addProperty("image", "itzg/minecraft-server");
+    container.add("ports", array(port));
+    return container;
+  }
+
+  private static JsonObject labels(String... pairs) {
+    JsonObject labels = new JsonObject();
+    for (int i = 0; i + 1 < pairs.length; i += 2) {
+      labels.addProperty(pairs[i], pairs[i + 1]);
+    }
+    return labels;
+  }
+
+  private static JsonObject metadata(String name, JsonObject labels) {
+    JsonObject metadata = new JsonObject();
+    if (name != null) {
+      metadata.addProperty("name", name);
+      metadata.addProperty("namespace", "beans-mini-games");
+    }
+    metadata.add("labels", labels);
+    return metadata;
+  }
+
+  private static JsonArray array(JsonElement element) {
+    JsonArray array = new JsonArray();
+    array.add(element);
+    return array;
+  }
+
+  private void put(String resource, JsonObject object) {
+    JsonObject metadata = object.getAsJsonObject("metadata");
+    metadata.addProperty("resourceVersion", Long.toString(++resourceVersion));
+    metadata.addProperty("uid", UUID.randomUUID().toString());
+    resources.get(resource).put(metadata.get("name").getAsString(), object);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    // /api/v1/namespaces/[namespace]/[resource]/[name] or /apis/batch/v1/namespaces/[namespace]/[resource]/[name]
+    List<String> parts = Arrays.asList(exchange.getRequestURI().getPath().split("/"));
+    int namespaceIndex = parts.indexOf("namespaces");
+    String resource = namespaceIndex >= 0 && parts.size() > namespaceIndex + 2 ? parts.get(namespaceIndex + 2) : null;
+    String name = namespaceIndex >= 0 && parts.size() > namespaceIndex + 3 ? parts.get(namespaceIndex + 3) : null;
+    String query = exchange.getRequestURI().getQuery();
+
+    // no usage to report, which the right-sizer takes as no games running
+    if (exchange.getRequestURI().getPath().startsWith("/apis/metrics.k8s.io/")) {
+      JsonObject list = new JsonObject();
+      list.addProperty("apiVersion", "metrics.k8s.io/v1beta1");
+      list.addProperty("kind", "PodMetricsList");
+      list.add("metadata", new JsonObject());
+      list.add("items", new JsonArray());
+      respond(exchange, 200, list);
+      return;
+    }
+
+    if (resource == null || !resources.containsKey(resource)) {
+      respond(exchange, 404, status(404));
+      return;
+    }
+
+    if (name == null && query != null && query.contains("watch=true")) {
+      watch(exchange);
+      return;
+    }
+
+    String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+    synchronized (this) {
+      Map<String, JsonObject> objects = resources.get(resource);
+      switch (exchange.getRequestMethod()) {
+        case "GET" -> {
+          if (name == null) {
+            respond(exchange, 200, list(resource, select(objects.values(), getLabelSelector(exchange))));
+          } else {
+            respond(exchange, objects.containsKey(name) ? 200 : 404, objects.containsKey(name) ? objects.get(name) : status(404));
+          }
+        }
+        case "POST" -> {
+          JsonObject object = JsonParser.parseString(body).getAsJsonObject();
+          JsonObject metadata = object.getAsJsonObject("metadata");
+          if (!metadata.has("name")) {
+            metadata.addProperty("name", metadata.get("generateName").getAsString() + resourceVersion);
+          }
+          if (objects.containsKey(metadata.get("name").getAsString())) {
+            respond(exchange, 409, status(409));
+            return;
+          }
+          put(resource, object);
+          respond(exchange, 201, object);
+        }
+        case "PATCH" -> {
+          JsonObject object = objects.get(name);
+          if (object == null) {
+            respond(exchange, 404, status(404));
+            return;
+          }
+          JsonObject patched = patch(object, JsonParser.parseString(body).getAsJsonArray());
+          if (patched == null) {
+            respond(exchange, 422, status(422));
+            return;
+          }
+          put(resource, patched);
+          respond(exchange, 200, patched);
+        }
+        case "DELETE" -> {
+          JsonObject removed = objects.remove(name);
+          respond(exchange, removed == null ? 404 : 200, status(removed == null ? 404 : 200));
+        }
+        default -> respond(exchange, 405, status(405));
+      }
+    }
+  }
+
+  /**
+   * Apply a JSON patch of test, add, replace and remove ops on /metadata/labels/[label]
+   * @param object
+   * @param ops
+   * @return The patched copy. Null if a test op failed
+   */
+  private static JsonObject patch(JsonObject object, JsonArray ops) {
+    JsonObject copy = object.deepCopy();
+    JsonObject labels = copy.getAsJsonObject("metadata").getAsJsonObject("labels");
+    for (JsonElement element : ops) {
+      JsonObject op = element.getAsJsonObject();
+      String path = op.get("path").getAsString();
+      String label = path.substring("/metadata/labels/".length()).replace("~1", "/").replace("~0", "~");
+      switch (op.get("op").getAsString()) {
+        case "test" -> {
+          if (!labels.has(label) || !labels.get(label).getAsString().equals(op.get("value").getAsString())) {
+            return null;
+          }
+        }
+        case "add", "replace" -> labels.addProperty(label, op.get("value").getAsString());
+        case "remove" -> labels.remove(label);
+        default -> throw new IllegalArgumentException("Unsupported op: " + op);
+      }
+    }
+    return copy;
+  }
+
+  private static String getLabelSelector(HttpExchange exchange) {
+    String query = exchange.getRequestURI().getQuery();
+    if (query == null) {
+      return null;
+    }
+    for (String param : query.split("&")) {
+      if (param.startsWith("labelSelector=")) {
+        return param.substring("labelSelector=".length());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param objects
+   * @param selector Comma separated label=value and label terms. Null selects everything
+   * @return
+   */
+  private static List<JsonObject> select(Collection<JsonObject> objects, String selector) {
+    List<JsonObject> selected = new ArrayList<>();
+    for (JsonObject object : objects) {
+      JsonObject labels = object.getAsJsonObject("metadata").getAsJsonObject("labels");
+      boolean matches = true;
+      for (String term : selector == null ? new String[0] : selector.split(",")) {
+        String[] parts = term.split("=", 2);
+        if (labels == null || !labels.has(parts[0]) || (parts.length == 2 && !labels.get(parts[0]).getAsString().equals(parts[1]))) {
+          matches = false;
+        }
+      }
+      if (matches) {
+        selected.add(object);
+      }
+    }
+    return selected;
+  }
+
+  private JsonObject list(String resource, Collection<JsonObject> objects) {
+    JsonObject metadata = new JsonObject();
+    metadata.addProperty("resourceVersion", Long.toString(resourceVersion));
+    JsonArray items = new JsonArray();
+    objects.forEach(items::add);
+    JsonObject list = new JsonObject();
+    list.addProperty("apiVersion", resource.equals("jobs") ? "batch/v1" : "v1");
+    list.addProperty("kind", switch (resource) {
+      case "jobs" -> "JobList";
+      case "configmaps" -> "ConfigMapList";
+      case "pods" -> "PodList";
+      default -> "PersistentVolumeClaimList";
+    });
+    list.add("metadata", metadata);
+    list.add("items", items);
+    return list;
+  }
+
+  private static JsonObject status(int code) {
+    JsonObject status = new JsonObject();
+    status.addProperty("apiVersion", "v1");
+    status.addProperty("kind", "Status");
+    status.addProperty("code", code);
+    status.addProperty("status", code < 300 ? "Success" : "Failure");
+    return status;
+  }
+
+  /**
+   * Keep a watch open, without events, until the server stops
+   * @param exchange
+   */
+  private void watch(HttpExchange exchange) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(200, 0);
+    try {
+      stopped.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    exchange.close();
+  }
+
+  private static void respond(HttpExchange exchange, int code, JsonObject body) throws IOException {
+    byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(code, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package beansplusplus.lobby;
+
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Creates games from many threads on two managers, standing in for two proxies, against one fake apiserver.
+ * The fake's watches send no events, so neither manager sees the other's changes and both race for the same ready
+ * worlds and game IDs. Only the apiserver's test ops and name conflicts keep them apart.
+ */
+public class KubernetesManagerTest {
+  private static final int PROXIES = 2;
+  private static final int THREADS = 8;
+  private static final int READY_CLAIMS = 6;
+  // the default ID space, 2 digits of base 10
+  private static final int ID_SPACE = 100;
+
+  private FakeApiServer apiServer;
+  private final List<KubernetesManager> managers = new ArrayList<>();
+  // IDs no other proxy has reserved. Exactly one per create
+  private final Set<String> freeIds = new HashSet<>();
+
+  @BeforeEach
+  public void start() throws Exception {
+    apiServer = new FakeApiServer();
+    apiServer.seedReadyClaims(READY_CLAIMS);
+    List<String> reservedIds = new ArrayList<>();
+    for (int i = 0; i < ID_SPACE; i++) {
+      String id = String.format("%02d", i);
+      if (i % 6 == 0 && freeIds.size() < PROXIES * THREADS) {
+        freeIds.add(id);
+      } else {
+        reservedIds.add(id);
+      }
+    }
+    apiServer.seedIdReservations(reservedIds);
+    for (int i = 0; i < PROXIES; i++) {
+      managers.add(new KubernetesManager(apiServer.client(), apiServer.watchClient()));
+    }
+
+    long deadline = System.currentTimeMillis() + 30_000;
+    for (KubernetesManager manager : managers) {
+      while (!manager.hasSynced()) {
+        assertTrue(System.currentTimeMillis() < deadline, "Cluster cache didn't sync");
+        Thread.sleep(50);
+      }
+    }
+  }
+
+  @AfterEach
+  public void stop() {
+    managers.forEach(KubernetesManager::shutdown);
+    apiServer.stop();
+  }
+
+  @Test
+  public void concurrentCreatesGetAWorldAndIdEach() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(PROXIES * THREADS);
+    CountDownLatch go = new CountDownLatch(1);
+    List<Future<String>> creates = new ArrayList<>();
+    for (KubernetesManager manager : managers) {
+      for (int i = 0; i < THREADS; i++) {
+        String creator = "player" + creates.size();
+        creates.add(executor.submit(() -> {
+          go.await();
+          return manager.createGame(GameType.BLOCK_SHUFFLE, creator);
+        }));
+      }
+    }
+    go.countDown();
+
+    List<String> ids = new ArrayList<>();
+    for (Future<String> create : creates) {
+      ids.add(create.get(60, TimeUnit.SECONDS));
+    }
+    executor.shutdown();
+    assertEquals(ids.size(), new HashSet<>(ids).size(), "A game ID was handed out twice: " + ids);
+    // every other ID was reserved by another proxy, so each create had to get past conflicts to one of these
+    assertEquals(freeIds, new HashSet<>(ids));
+
+    // game ID to the world it runs on
+    Map<String, String> games = new HashMap<>();
+    for (JsonObject job : apiServer.getObjects("jobs")) {
+      JsonObject labels = job.getAsJsonObject("metadata").getAsJsonObject("labels");
+      if (labels.has("game-id")) {
+        String claimName = job.getAsJsonObject("spec").getAsJsonObject("template").getAsJsonObject("spec")
+            .getAsJsonArray("volumes").get(0).getAsJsonObject().getAsJsonObject("persistentVolumeClaim")
+            .get("claimName").getAsString();
+        assertNull(games.put(labels.get("game-id").getAsString(), claimName), "Two jobs have game ID " + labels.get("game-id"));
+      }
+    }
+    assertEquals(new HashSet<>(ids), games.keySet());
+    Set<String> reserved = new HashSet<>();
+    for (JsonObject reservation : apiServer.getObjects("configmaps")) {
+      reserved.add(reservation.getAsJsonObject("metadata").getAsJsonObject("labels").get("game-id").getAsString());
+    }
+    assertTrue(reserved.containsAll(games.keySet()), "A game's ID isn't reserved");
+    assertEquals(games.size(), new HashSet<>(games.values()).size(), "A world was given to two games: " + games);
+
+    Map<String, String> stages = new HashMap<>();
+    for (JsonObject claim : apiServer.getObjects("persistentvolumeclaims")) {
+      JsonObject metadata = claim.getAsJsonObject("metadata");
+      stages.put(metadata.get("name").getAsString(), metadata.getAsJsonObject("labels").get("stage").getAsString());
+    }
+    // there were more creates than ready worlds, so every one was taken, and the rest were made empty
+    for (int i = 0; i < READY_CLAIMS; i++) {
+      assertTrue(games.containsValue("beans-world-ready-" + i), "beans-world-ready-" + i + " wasn't used");
+    }
+    for (Map.Entry<String, String> claim : stages.entrySet()) {
+      assertEquals("game", claim.getValue(), claim.getKey() + " is in the wrong stage");
+      assertTrue(games.containsValue(claim.getKey()), claim.getKey() + " was reserved but no game got it");
+    }
+  }
+}